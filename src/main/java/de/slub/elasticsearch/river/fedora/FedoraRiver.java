@@ -16,51 +16,73 @@
 
 package de.slub.elasticsearch.river.fedora;
 
-import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraCredentials;
 import com.yourmediashelf.fedora.client.request.DescribeRepository;
 import com.yourmediashelf.fedora.client.response.DescribeRepositoryResponse;
 import com.yourmediashelf.fedora.generated.access.FedoraRepository;
+import de.slub.fedora.PooledFedoraClient;
 import de.slub.fedora.jms.APIMConsumer;
+import de.slub.fedora.jms.APIMConsumerBuilder;
 import de.slub.fedora.oai.OaiHarvester;
 import de.slub.fedora.oai.OaiHarvesterBuilder;
 import de.slub.index.*;
 import de.slub.util.concurrent.UniquePredicateDelayQueue;
+import de.slub.util.concurrent.WeightedLaneQueue;
 import org.apache.commons.io.IOUtils;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequest;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.river.AbstractRiverComponent;
 import org.elasticsearch.river.River;
 import org.elasticsearch.river.RiverName;
 import org.elasticsearch.river.RiverSettings;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class FedoraRiver extends AbstractRiverComponent implements River {
 
     private static final String DEFAULT_INDEX_NAME = "fedora";
+    private static final int DEFAULT_REALTIME_WEIGHT = 4;
+    private static final int DEFAULT_BACKFILL_WEIGHT = 1;
+    private static final int DEFAULT_FEDORA_REQUEST_THREADS = 8;
+    private static final int FEDORA_REQUEST_QUEUE_CAPACITY = 100;
     private final Client esClient;
+    private final NodeEnvironment nodeEnvironment;
     private APIMConsumer apimConsumer;
     private Thread apimConsumerThread;
     private String brokerUrl;
+    private ContentExtractor contentExtractor;
     private Map<String, Object> disseminationContentMapping;
     private List<String> excludeDatastreams = new ArrayList<>();
-    private FedoraClient fedoraClient;
+    private Map<String, Object> extractionSettings = new HashMap<>();
+    private PooledFedoraClient fedoraClient;
+    private ExecutorService fedoraRequestExecutor;
+    private Map<String, Object> fedoraSettings;
     private String fedoraUrl;
-    private IndexJobProcessor indexJobProcessor;
-    private Thread indexJobProcessorThread;
-    private UniquePredicateDelayQueue<IndexJob> indexJobQueue;
+    private IndexJobDispatcher indexJobDispatcher;
+    private Thread indexJobDispatcherThread;
+    private List<IndexJobProcessor> indexJobProcessors = new ArrayList<>();
+    private List<Thread> indexJobProcessorThreads = new ArrayList<>();
+    private List<UniquePredicateDelayQueue<IndexJob>> indexJobLanes = new ArrayList<>();
+    private WeightedLaneQueue<IndexJob> indexJobQueue;
+    private IndexJobJournal indexJobJournal;
+    private Thread indexJobJournalThread;
     private String indexName = DEFAULT_INDEX_NAME;
-    private String messageSelector;
+    private Map<String, Object> indexSettings = new HashMap<>();
+    private int indexWorkers = 1;
+    private Map<String, Object> jmsSettings = new HashMap<>();
+    private Map<String, Object> journalSettings = new HashMap<>();
     private String method;
     private OaiHarvester oaiHarvester;
     private Thread oaiHarvesterThread;
@@ -68,14 +90,18 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
     private String password;
     private String pidMatch = "";
     private List<String> relevantDatastreams = new ArrayList<>();
+    private RiverStatsReporter riverStatsReporter;
+    private Thread riverStatsReporterThread;
     private String sdefPid;
-    private String topicFilter;
+    private Map<String, Object> statsSettings = new HashMap<>();
     private String username;
 
     @Inject
-    protected FedoraRiver(RiverName riverName, RiverSettings settings, Client client) throws Exception {
+    protected FedoraRiver(RiverName riverName, RiverSettings settings, Client client,
+                          NodeEnvironment nodeEnvironment) throws Exception {
         super(riverName, settings);
         esClient = client;
+        this.nodeEnvironment = nodeEnvironment;
 
         logger.info("Starting river configuration");
 
@@ -85,21 +111,149 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
         setupOaiHarvesterThread();
         setupFedoraClient();
         setupIndexJobProcessorThread(settings);
+        setupRiverStatsReporterThread();
 
         logger.info("River created and configured");
     }
 
-    private void setupJobQueueing() {
-        indexJobQueue = new UniquePredicateDelayQueue<>();
+    private void setupJobQueueing() throws IOException {
+        UniquePredicateDelayQueue<IndexJob> realtimeLane = createIndexJobLane();
+        UniquePredicateDelayQueue<IndexJob> backfillLane = createIndexJobLane();
+        indexJobQueue = new WeightedLaneQueue<IndexJob>()
+                .addLane("realtime",
+                        XContentMapValues.nodeIntegerValue(indexSettings.get("realtime_weight"), DEFAULT_REALTIME_WEIGHT),
+                        new LanePredicate(IndexJob.Lane.REALTIME),
+                        realtimeLane)
+                .addLane("backfill",
+                        XContentMapValues.nodeIntegerValue(indexSettings.get("backfill_weight"), DEFAULT_BACKFILL_WEIGHT),
+                        null,
+                        backfillLane);
+        if (XContentMapValues.nodeBooleanValue(journalSettings.get("enabled"), false)) {
+            setupJobJournal();
+        }
+    }
+
+    private UniquePredicateDelayQueue<IndexJob> createIndexJobLane() {
+        UniquePredicateDelayQueue<IndexJob> lane = new UniquePredicateDelayQueue<>();
+        lane.coalescer(new IndexJobCoalescer());
         if (!pidMatch.isEmpty()) {
-            indexJobQueue.addPredicate(new MatchPidPredicate(pidMatch));
+            lane.addPredicate(new MatchPidPredicate(pidMatch));
         }
         if (!relevantDatastreams.isEmpty()) {
-            indexJobQueue.addPredicate(new DisseminationRelevantDatastreamPredicate(relevantDatastreams));
+            lane.addPredicate(new DisseminationRelevantDatastreamPredicate(relevantDatastreams));
         }
         if (!excludeDatastreams.isEmpty()) {
-            indexJobQueue.addPredicate(new ExcludeDatastreamPredicate(excludeDatastreams));
+            lane.addPredicate(new ExcludeDatastreamPredicate(excludeDatastreams));
+        }
+        indexJobLanes.add(lane);
+        return lane;
+    }
+
+    private void setupRiverStatsReporterThread() {
+        riverStatsReporter = new RiverStatsReporter(
+                esClient,
+                riverName,
+                XContentMapValues.nodeTimeValue(statsSettings.get("interval"), RiverStatsReporter.DEFAULT_INTERVAL),
+                logger);
+        riverStatsReporter.register("queue", indexJobQueue);
+        riverStatsReporter.register("fedora_connections", fedoraClient);
+        riverStatsReporter.register("jms", apimConsumer);
+        riverStatsReporter.register("extraction", contentExtractor);
+        riverStatsReporterThread = EsExecutors.daemonThreadFactory(
+                settings.globalSettings(),
+                "fedora-river-statsReporter").newThread(riverStatsReporter);
+    }
+
+    private void setupJobJournal() throws IOException {
+        if (!nodeEnvironment.hasNodeFile()) {
+            logger.warn("Job journal is enabled but the node has no data directory. Journal disabled.");
+            return;
+        }
+
+        File directory = new File(nodeEnvironment.nodeDataLocations()[0],
+                "fedora-river" + File.separator + riverName.name() + File.separator + "journal");
+        indexJobJournal = new IndexJobJournal(
+                directory,
+                XContentMapValues.nodeTimeValue(
+                        journalSettings.get("flush_interval"), IndexJobJournal.DEFAULT_FLUSH_INTERVAL),
+                ByteSizeValue.parseBytesSizeValue(
+                        XContentMapValues.nodeStringValue(journalSettings.get("compact_threshold"), null),
+                        IndexJobJournal.DEFAULT_COMPACT_THRESHOLD),
+                logger);
+
+        List<IndexJob> restoredJobs = indexJobJournal.open();
+        for (UniquePredicateDelayQueue<IndexJob> lane : indexJobLanes) {
+            lane.addListener(indexJobJournal);
+        }
+        for (IndexJob job : restoredJobs) {
+            if (!indexJobQueue.offer(job)) {
+                // filtered by predicates that have changed since the job was recorded
+                indexJobJournal.discarded(job);
+            }
+        }
+        if (!restoredJobs.isEmpty()) {
+            logger.info("Restored {} pending index jobs from journal", restoredJobs.size());
         }
+
+        indexJobJournalThread = EsExecutors.daemonThreadFactory(
+                settings.globalSettings(),
+                "fedora-river-indexJobJournal").newThread(indexJobJournal);
+    }
+
+    private void setupExtractionWorkers(RiverSettings settings) {
+        Map<String, Object> workerSettings = extractionSettings.containsKey("workers")
+                ? XContentMapValues.nodeMapValue(extractionSettings.get("workers"), "extraction.workers")
+                : new HashMap<String, Object>();
+        if (!XContentMapValues.nodeBooleanValue(workerSettings.get("enabled"), false)) {
+            return;
+        }
+
+        List<String> jvmOptions = new ArrayList<>();
+        if (workerSettings.containsKey("jvm_options")) {
+            for (Object option : XContentMapValues.extractRawValues("jvm_options", workerSettings)) {
+                jvmOptions.add(String.valueOf(option));
+            }
+        }
+        List<String> command = ExtractionWorkerPool.command(
+                XContentMapValues.nodeStringValue(workerSettings.get("java"), null),
+                ByteSizeValue.parseBytesSizeValue(
+                        XContentMapValues.nodeStringValue(workerSettings.get("heap"), null),
+                        ExtractionWorkerPool.DEFAULT_HEAP),
+                jvmOptions,
+                XContentMapValues.nodeStringValue(workerSettings.get("classpath"), null));
+        contentExtractor.workers(new ExtractionWorkerPool(
+                XContentMapValues.nodeIntegerValue(workerSettings.get("size"), ExtractionWorkerPool.DEFAULT_SIZE),
+                command,
+                XContentMapValues.nodeIntegerValue(workerSettings.get("max_documents"), ExtractionWorkerPool.DEFAULT_MAX_DOCUMENTS),
+                XContentMapValues.nodeTimeValue(workerSettings.get("timeout"),
+                        XContentMapValues.nodeTimeValue(extractionSettings.get("timeout"), ContentExtractor.DEFAULT_TIMEOUT)),
+                EsExecutors.daemonThreadFactory(settings.globalSettings(), "fedora-river-extractionWatchdog")));
+        logger.info("Extracting content in {} worker JVMs", XContentMapValues.nodeIntegerValue(
+                workerSettings.get("size"), ExtractionWorkerPool.DEFAULT_SIZE));
+    }
+
+    private void setupExtractionCache() throws IOException {
+        Map<String, Object> cacheSettings = extractionSettings.containsKey("cache")
+                ? XContentMapValues.nodeMapValue(extractionSettings.get("cache"), "extraction.cache")
+                : new HashMap<String, Object>();
+        if (!XContentMapValues.nodeBooleanValue(cacheSettings.get("enabled"), false)) {
+            return;
+        }
+        if (!nodeEnvironment.hasNodeFile()) {
+            logger.warn("Extraction cache is enabled but the node has no data directory. Cache disabled.");
+            return;
+        }
+
+        File directory = new File(nodeEnvironment.nodeDataLocations()[0],
+                "fedora-river" + File.separator + riverName.name() + File.separator + "extraction-cache");
+        ExtractionCache extractionCache = new ExtractionCache(
+                directory,
+                ByteSizeValue.parseBytesSizeValue(
+                        XContentMapValues.nodeStringValue(cacheSettings.get("max_size"), null),
+                        ExtractionCache.DEFAULT_MAX_SIZE),
+                logger);
+        extractionCache.open();
+        contentExtractor.cache(extractionCache);
     }
 
     private void setupOaiHarvesterThread() throws Exception {
@@ -108,6 +262,7 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
                     .settings(oaiSettings)
                     .esClient(esClient)
                     .riverName(riverName)
+                    .indexName(indexName)
                     .indexJobQueue(indexJobQueue)
                     .logger(logger)
                     .build();
@@ -122,7 +277,12 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
         setupIndex(esClient, indexName);
         safeStart(apimConsumerThread);
         safeStart(oaiHarvesterThread);
-        safeStart(indexJobProcessorThread);
+        safeStart(indexJobJournalThread);
+        safeStart(riverStatsReporterThread);
+        safeStart(indexJobDispatcherThread);
+        for (Thread thread : indexJobProcessorThreads) {
+            safeStart(thread);
+        }
         logger.info("River started");
     }
 
@@ -137,14 +297,53 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
     public void close() {
         apimConsumer.terminate();
         oaiHarvester.terminate();
-        indexJobProcessor.terminate();
+        if (indexJobDispatcher != null) {
+            indexJobDispatcher.terminate();
+        }
+        for (IndexJobProcessor indexJobProcessor : indexJobProcessors) {
+            indexJobProcessor.terminate();
+        }
+        if (indexJobJournal != null) {
+            indexJobJournal.terminate();
+        }
+        if (riverStatsReporter != null) {
+            riverStatsReporter.terminate();
+        }
+        if (fedoraRequestExecutor != null) {
+            fedoraRequestExecutor.shutdown();
+        }
+        if (contentExtractor != null) {
+            contentExtractor.shutdown();
+        }
+        if (fedoraClient != null) {
+            fedoraClient.close();
+        }
         logger.info("River closed");
     }
 
     private void setupFedoraClient() throws Exception {
+        // every index worker holds the content streams of up to threads + 1 prefetched datastreams
+        // and sends requests of its own, the request threads need a connection each
+        int requiredConnections = indexWorkers * (extractionThreads() + 2) + fedoraRequestThreads();
+        int maxConnections = XContentMapValues.nodeIntegerValue(fedoraSettings.get("max_connections"),
+                Math.max(PooledFedoraClient.DEFAULT_MAX_CONNECTIONS, requiredConnections));
+        if (maxConnections < requiredConnections) {
+            logger.warn("fedora.max_connections {} is too small for {} index workers with {} extraction threads, using {}",
+                    maxConnections, indexWorkers, extractionThreads(), requiredConnections);
+            maxConnections = requiredConnections;
+        }
         try {
-            fedoraClient = new FedoraClient(
-                    new FedoraCredentials(fedoraUrl, username, password));
+            fedoraClient = new PooledFedoraClient(
+                    new FedoraCredentials(fedoraUrl, username, password),
+                    maxConnections,
+                    XContentMapValues.nodeTimeValue(
+                            fedoraSettings.get("connect_timeout"), PooledFedoraClient.DEFAULT_CONNECT_TIMEOUT),
+                    XContentMapValues.nodeTimeValue(
+                            fedoraSettings.get("read_timeout"), PooledFedoraClient.DEFAULT_READ_TIMEOUT),
+                    XContentMapValues.nodeTimeValue(
+                            fedoraSettings.get("connection_request_timeout"),
+                            PooledFedoraClient.DEFAULT_CONNECTION_REQUEST_TIMEOUT),
+                    XContentMapValues.nodeBooleanValue(fedoraSettings.get("gzip"), true));
 
             DescribeRepositoryResponse describeResponse =
                     (DescribeRepositoryResponse) fedoraClient.execute(new DescribeRepository());
@@ -161,10 +360,18 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
         }
     }
 
+    private int fedoraRequestThreads() {
+        return XContentMapValues.nodeIntegerValue(fedoraSettings.get("request_threads"), DEFAULT_FEDORA_REQUEST_THREADS);
+    }
+
+    private int extractionThreads() {
+        return Math.max(1, XContentMapValues.nodeIntegerValue(
+                extractionSettings.get("threads"), ContentExtractor.DEFAULT_THREADS));
+    }
+
     private void configure(RiverSettings settings) throws Exception {
         if (settings.settings().containsKey("index")) {
-            Map<String, Object> indexSettings =
-                    XContentMapValues.nodeMapValue(settings.settings().get("index"), "index");
+            indexSettings = XContentMapValues.nodeMapValue(settings.settings().get("index"), "index");
 
             indexName = XContentMapValues.nodeStringValue(
                     indexSettings.get("indexName"), DEFAULT_INDEX_NAME);
@@ -172,6 +379,9 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
             pidMatch = XContentMapValues.nodeStringValue(
                     indexSettings.get("pid_match"), "");
 
+            indexWorkers = Math.max(1, XContentMapValues.nodeIntegerValue(
+                    indexSettings.get("workers"), 1));
+
             addToList(excludeDatastreams, "exclude_datastreams", indexSettings);
 
             if (indexSettings.containsKey("dissemination")) {
@@ -226,11 +436,9 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
         }
 
         if (settings.settings().containsKey("jms")) {
-            Map<String, Object> jmsSettings =
+            jmsSettings =
                     XContentMapValues.nodeMapValue(settings.settings().get("jms"), "jms");
             brokerUrl = (String) jmsSettings.get("brokerUrl");
-            messageSelector = (String) jmsSettings.get("messageSelector");
-            topicFilter = (String) jmsSettings.get("topicFilter");
         }
 
         if (brokerUrl == null || brokerUrl.isEmpty()) {
@@ -240,7 +448,7 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
         }
 
         if (settings.settings().containsKey("fedora")) {
-            Map<String, Object> fedoraSettings =
+            fedoraSettings =
                     XContentMapValues.nodeMapValue(settings.settings().get("fedora"), "fedora");
             fedoraUrl = (String) fedoraSettings.get("url");
             username = (String) fedoraSettings.get("username");
@@ -250,6 +458,21 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
                     "Please specify fedora.* options in the Fedora River metadata.");
         }
 
+        if (settings.settings().containsKey("stats")) {
+            statsSettings =
+                    XContentMapValues.nodeMapValue(settings.settings().get("stats"), "stats");
+        }
+
+        if (settings.settings().containsKey("extraction")) {
+            extractionSettings =
+                    XContentMapValues.nodeMapValue(settings.settings().get("extraction"), "extraction");
+        }
+
+        if (settings.settings().containsKey("journal")) {
+            journalSettings =
+                    XContentMapValues.nodeMapValue(settings.settings().get("journal"), "journal");
+        }
+
         if (settings.settings().containsKey("oai")) {
             this.oaiSettings =
                     XContentMapValues.nodeMapValue(settings.settings().get("oai"), "oai");
@@ -267,29 +490,79 @@ public class FedoraRiver extends AbstractRiverComponent implements River {
         }
     }
 
-    private void setupIndexJobProcessorThread(RiverSettings settings) {
-        indexJobProcessor = new IndexJobProcessor(
-                indexJobQueue,
-                indexName,
-                esClient,
-                fedoraClient,
-                logger,
-                sdefPid,
-                method
-        );
-        indexJobProcessorThread = EsExecutors.daemonThreadFactory(
+    private void setupIndexJobProcessorThread(RiverSettings settings) throws IOException {
+        ThreadFactory threadFactory = EsExecutors.daemonThreadFactory(
                 settings.globalSettings(),
-                "fedora-river-indexJobProcessor").newThread(indexJobProcessor);
+                "fedora-river-indexJobProcessor");
+
+        List<BlockingQueue<IndexJob>> workerQueues = new ArrayList<>();
+        if (indexWorkers == 1) {
+            workerQueues.add(indexJobQueue);
+        } else {
+            // keep worker queues short so that lane priorities are not undone by jobs waiting in them
+            int stripeCapacity = XContentMapValues.nodeIntegerValue(
+                    indexSettings.get("bulk_size"), IndexJobProcessor.DEFAULT_BULK_SIZE);
+            indexJobDispatcher = new IndexJobDispatcher(indexJobQueue, indexWorkers, stripeCapacity, logger);
+            indexJobDispatcherThread = EsExecutors.daemonThreadFactory(
+                    settings.globalSettings(),
+                    "fedora-river-indexJobDispatcher").newThread(indexJobDispatcher);
+            for (int i = 0; i < indexWorkers; i++) {
+                workerQueues.add(indexJobDispatcher.stripe(i));
+            }
+            logger.info("Processing index jobs with {} workers", indexWorkers);
+        }
+
+        int fedoraRequestThreads = fedoraRequestThreads();
+        // runs independent Fedora requests of a job concurrently, the job's own thread helps out when busy
+        fedoraRequestExecutor = new ThreadPoolExecutor(
+                fedoraRequestThreads, fedoraRequestThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(FEDORA_REQUEST_QUEUE_CAPACITY),
+                EsExecutors.daemonThreadFactory(settings.globalSettings(), "fedora-river-fedoraRequest"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        contentExtractor = new ContentExtractor(
+                extractionThreads(),
+                XContentMapValues.nodeIntegerValue(extractionSettings.get("queue_size"), ContentExtractor.DEFAULT_QUEUE_SIZE),
+                XContentMapValues.nodeTimeValue(extractionSettings.get("timeout"), ContentExtractor.DEFAULT_TIMEOUT),
+                XContentMapValues.nodeIntegerValue(extractionSettings.get("max_chars"), ContentExtractor.DEFAULT_MAX_CHARS),
+                EsExecutors.daemonThreadFactory(settings.globalSettings(), "fedora-river-contentExtractor"));
+        if (extractionSettings.containsKey("mime_types")) {
+            contentExtractor.routing(new MimeTypeRouting(
+                    XContentMapValues.nodeMapValue(extractionSettings.get("mime_types"), "extraction.mime_types")));
+        }
+        setupExtractionWorkers(settings);
+        setupExtractionCache();
+
+        for (BlockingQueue<IndexJob> workerQueue : workerQueues) {
+            IndexJobProcessor indexJobProcessor = new IndexJobProcessorBuilder()
+                    .settings(indexSettings)
+                    .indexJobQueue(workerQueue)
+                    .followUpJobQueue(indexJobQueue)
+                    .indexName(indexName)
+                    .esClient(esClient)
+                    .fedoraClient(fedoraClient)
+                    .logger(logger)
+                    .sdefPid(sdefPid)
+                    .method(method)
+                    .journal(indexJobJournal)
+                    .executor(fedoraRequestExecutor)
+                    .extractor(contentExtractor)
+                    .build();
+            indexJobProcessors.add(indexJobProcessor);
+            indexJobProcessorThreads.add(threadFactory.newThread(indexJobProcessor));
+        }
     }
 
     private void setupApimConsumerThread(RiverSettings settings) throws URISyntaxException {
-        apimConsumer = new APIMConsumer(
-                new URI(brokerUrl),
-                messageSelector,
-                topicFilter,
-                indexJobQueue,
-                logger
-        );
+        apimConsumer = new APIMConsumerBuilder()
+                .settings(jmsSettings)
+                .riverName(riverName)
+                .journal(indexJobJournal)
+                .indexJobQueue(indexJobQueue)
+                .threadFactory(EsExecutors.daemonThreadFactory(settings.globalSettings(), "fedora-river-apimDispatcher"))
+                .logger(logger)
+                .build();
         apimConsumerThread = EsExecutors.daemonThreadFactory(
                 settings.globalSettings(),
                 "fedora-river-apimConsumer").newThread(apimConsumer);
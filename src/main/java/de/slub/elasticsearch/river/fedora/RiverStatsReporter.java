@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.elasticsearch.river.fedora;
+
+import de.slub.util.TerminateableRunnable;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.river.RiverName;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Periodically writes the statistics of registered river components to the '_stats' river document.
+ */
+public class RiverStatsReporter extends TerminateableRunnable {
+
+    public static final TimeValue DEFAULT_INTERVAL = TimeValue.timeValueSeconds(10);
+    private final Client client;
+    private final RiverName riverName;
+    private final TimeValue interval;
+    private final ESLogger log;
+    private final Map<String, ToXContent> sources = new LinkedHashMap<>();
+
+    public RiverStatsReporter(Client client, RiverName riverName, TimeValue interval, ESLogger logger) {
+        this.client = client;
+        this.riverName = riverName;
+        this.interval = interval;
+        this.log = logger;
+    }
+
+    public synchronized RiverStatsReporter register(String name, ToXContent source) {
+        sources.put(name, source);
+        return this;
+    }
+
+    @Override
+    public void run() {
+        while (isRunning()) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(interval.millis());
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for next stats report: {}", e.getMessage());
+                return;
+            }
+            writeStats();
+        }
+    }
+
+    public synchronized void writeStats() {
+        try {
+            XContentBuilder jb = jsonBuilder().startObject();
+            jb.field("timestamp", new Date());
+            for (Map.Entry<String, ToXContent> source : sources.entrySet()) {
+                jb.startObject(source.getKey());
+                source.getValue().toXContent(jb, ToXContent.EMPTY_PARAMS);
+                jb.endObject();
+            }
+            jb.endObject();
+            client.prepareIndex(riverName.getName(), riverName.type(), "_stats")
+                    .setSource(jb)
+                    .execute().actionGet();
+        } catch (Exception e) {
+            log.warn("Cannot write river statistics: {}", e.getMessage());
+        }
+    }
+
+}
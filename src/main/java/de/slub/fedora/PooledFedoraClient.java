@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora;
+
+import com.sun.jersey.api.client.WebResource;
+import com.sun.jersey.api.client.config.ClientConfig;
+import com.sun.jersey.api.client.filter.GZIPContentEncodingFilter;
+import com.sun.jersey.api.client.filter.HTTPBasicAuthFilter;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
+import com.sun.jersey.client.apache4.config.DefaultApacheHttpClient4Config;
+import com.yourmediashelf.fedora.client.FedoraClient;
+import com.yourmediashelf.fedora.client.FedoraCredentials;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.PoolStats;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fedora client that sends all requests through a bounded pool of persistent HTTP connections.
+ * <p/>
+ * Responses have to be consumed or closed to return their connection to the pool. A request
+ * that finds no free connection within the connection request timeout fails.
+ */
+public class PooledFedoraClient extends FedoraClient implements ToXContent {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final TimeValue DEFAULT_CONNECT_TIMEOUT = TimeValue.timeValueSeconds(10);
+    public static final TimeValue DEFAULT_READ_TIMEOUT = TimeValue.timeValueSeconds(60);
+    public static final TimeValue DEFAULT_CONNECTION_REQUEST_TIMEOUT = TimeValue.timeValueSeconds(30);
+    // Jersey 1.x only accepts a connection manager of the pre-4.3 HttpClient API
+    private final TimedConnectionManager connectionManager;
+    private final ApacheHttpClient4 client;
+
+    public PooledFedoraClient(FedoraCredentials credentials) {
+        this(credentials, DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT,
+                DEFAULT_CONNECTION_REQUEST_TIMEOUT, true);
+    }
+
+    public PooledFedoraClient(FedoraCredentials credentials, int maxConnections, TimeValue connectTimeout,
+                              TimeValue readTimeout, TimeValue connectionRequestTimeout, boolean gzip) {
+        super(credentials);
+
+        connectionManager = new TimedConnectionManager(connectionRequestTimeout);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        DefaultApacheHttpClient4Config config = new DefaultApacheHttpClient4Config();
+        config.getProperties().put(ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER, connectionManager);
+        config.getProperties().put(ClientConfig.PROPERTY_CONNECT_TIMEOUT, (int) connectTimeout.millis());
+        config.getProperties().put(ClientConfig.PROPERTY_READ_TIMEOUT, (int) readTimeout.millis());
+        config.getProperties().put(ClientConfig.PROPERTY_FOLLOW_REDIRECTS, true);
+
+        client = ApacheHttpClient4.create(config);
+        client.addFilter(new HTTPBasicAuthFilter(credentials.getUsername(), credentials.getPassword()));
+        if (gzip) {
+            client.addFilter(new GZIPContentEncodingFilter(false));
+        }
+    }
+
+    @Override
+    public WebResource resource(String url) {
+        return client.resource(url);
+    }
+
+    public void close() {
+        client.destroy();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        PoolStats stats = connectionManager.getTotalStats();
+        return builder
+                .field("max", stats.getMax())
+                .field("leased", stats.getLeased())
+                .field("available", stats.getAvailable())
+                .field("pending", stats.getPending())
+                .field("utilization", (stats.getMax() == 0) ? 0 : (double) stats.getLeased() / stats.getMax());
+    }
+
+    /**
+     * Waits at most the connection request timeout for a pooled connection. HttpClient 4.3.1
+     * cannot read <code>ClientPNames.CONN_MANAGER_TIMEOUT</code> consistently, so the timeout
+     * is applied to every lease here instead. The deprecated types are referenced by their fully
+     * qualified names, a suppression does not cover imports.
+     */
+    @SuppressWarnings("deprecation")
+    private static class TimedConnectionManager extends org.apache.http.impl.conn.PoolingClientConnectionManager {
+
+        private final long connectionRequestTimeout;
+
+        TimedConnectionManager(TimeValue connectionRequestTimeout) {
+            this.connectionRequestTimeout = connectionRequestTimeout.millis();
+        }
+
+        @Override
+        public org.apache.http.conn.ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final org.apache.http.conn.ClientConnectionRequest request = super.requestConnection(route, state);
+            return new org.apache.http.conn.ClientConnectionRequest() {
+                @Override
+                public org.apache.http.conn.ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    return request.getConnection(connectionRequestTimeout, TimeUnit.MILLISECONDS);
+                }
+
+                @Override
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+
+}
@@ -17,65 +17,204 @@
 package de.slub.fedora.jms;
 
 import de.slub.index.IndexJob;
+import de.slub.index.IndexJobJournal;
 import de.slub.util.TerminateableRunnable;
+import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.transport.TransportListener;
 import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import javax.jms.*;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.URI;
+import java.util.Date;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static de.slub.fedora.jms.MessageMapper.map;
 
-public class APIMConsumer extends TerminateableRunnable {
+/**
+ * Consumes Fedora API-M messages and schedules index jobs for them.
+ * <p/>
+ * Messages are received by a single session, from the topic or from a consumer queue, e.g. the
+ * consumer queue of a virtual topic. With several consumers the messages are handed to a fixed
+ * number of dispatch threads by the hash of their PID, so the messages of an object are still
+ * mapped and queued in the order they were received.
+ * <p/>
+ * Durable consumers subscribe to the topic with a durable subscription and acknowledge messages
+ * in batches, only after the jobs of the messages have been queued and forced to the job journal,
+ * so they require a journal. Messages that were not acknowledged before a restart or a lost connection get redelivered.
+ * <p/>
+ * If the connection cannot be established or is lost, the consumer reconnects after an
+ * exponentially growing delay with random jitter. A <code>failover:</code> broker URI lets the
+ * ActiveMQ transport reconnect on its own first, the consumer only takes over once the
+ * failover transport gives up.
+ */
+public class APIMConsumer extends TerminateableRunnable implements ToXContent {
+
+    private static final int DISPATCH_QUEUE_SIZE = 100;
 
     private final URI uri;
     private final ESLogger log;
     private final String messageSelector;
     private final String topicFilter;
+    private final String consumerQueue;
+    private final int consumerCount;
+    private final boolean durable;
+    private final String clientId;
+    private final String subscriptionName;
+    private final int ackBatchSize;
+    private final TimeValue ackInterval;
+    private final IndexJobJournal journal;
+    private final DebouncePolicy debouncePolicy;
+    private final TimeValue reconnectDelay;
+    private final TimeValue maxReconnectDelay;
     private final java.util.Queue<IndexJob> indexJobQueue;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private final ThreadFactory threadFactory;
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final Random random = new Random();
     private Connection connection;
-    private Session session;
-    private MessageConsumer consumer;
+    private ConsumerSession consumerSession;
+    private Dispatcher dispatcher;
+    private volatile CountDownLatch connectionLost;
+    private volatile Health health = Health.CONNECTING;
+    private volatile String lastError;
+    private volatile long connectedSince;
 
     public APIMConsumer(URI broker, String messageSelector, String topicFilter, java.util.Queue<IndexJob> indexJobQueue, ESLogger logger) {
+        this(broker, messageSelector, topicFilter, null, 1, false, null, null,
+                APIMConsumerBuilder.DEFAULT_ACK_BATCH_SIZE, APIMConsumerBuilder.DEFAULT_ACK_INTERVAL, null,
+                DebouncePolicy.DEFAULT, APIMConsumerBuilder.DEFAULT_RECONNECT_DELAY,
+                APIMConsumerBuilder.DEFAULT_MAX_RECONNECT_DELAY, indexJobQueue, Executors.defaultThreadFactory(),
+                logger);
+    }
+
+    public APIMConsumer(URI broker, String messageSelector, String topicFilter, String consumerQueue, int consumerCount,
+                        boolean durable, String clientId, String subscriptionName, int ackBatchSize, TimeValue ackInterval,
+                        IndexJobJournal journal, DebouncePolicy debouncePolicy, TimeValue reconnectDelay,
+                        TimeValue maxReconnectDelay, java.util.Queue<IndexJob> indexJobQueue, ThreadFactory threadFactory,
+                        ESLogger logger) {
         this.uri = broker;
         this.log = logger;
         this.messageSelector = messageSelector;
         this.topicFilter = (topicFilter != null && !topicFilter.isEmpty()) ? topicFilter : "fedora.apim.*";
+        this.consumerQueue = (consumerQueue != null && !consumerQueue.isEmpty()) ? consumerQueue : null;
+        this.consumerCount = Math.max(1, consumerCount);
+        this.durable = durable;
+        this.clientId = clientId;
+        this.subscriptionName = subscriptionName;
+        this.ackBatchSize = Math.max(1, ackBatchSize);
+        this.ackInterval = ackInterval;
+        this.journal = journal;
+        this.debouncePolicy = debouncePolicy;
+        this.reconnectDelay = reconnectDelay;
+        this.maxReconnectDelay = maxReconnectDelay;
         this.indexJobQueue = indexJobQueue;
+        this.threadFactory = threadFactory;
     }
 
     @Override
     public void run() {
+        long delay = reconnectDelay.millis();
         try {
-            startup();
-            receiveLoop();
-        } catch (Exception e) {
-            log.error(ensureMessage(e));
+            while (isRunning()) {
+                try {
+                    startup();
+                    delay = reconnectDelay.millis();
+                    consume();
+                } catch (JMSException | RuntimeException e) {
+                    lastError = ensureMessage(e);
+                    log.error("JMS connection failed: {}", lastError);
+                } finally {
+                    shutdown();
+                }
+                if (!isRunning()) {
+                    break;
+                }
+                health = Health.RECONNECTING;
+                reconnects.incrementAndGet();
+                long wait = withJitter(delay);
+                log.warn("Reconnecting to JMS broker {} in {} ms", uri.toASCIIString(), wait);
+                if (terminated.await(wait, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                delay = Math.min(2 * delay, maxReconnectDelay.millis());
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while consuming JMS messages: {}", e.getMessage());
         } finally {
-            shutdown();
+            health = Health.STOPPED;
         }
     }
 
-    private void receiveLoop() {
-        while (isRunning()) {
-            Message msg = null;
-            try {
-                msg = consumer.receive(TimeUnit.SECONDS.toMillis(1));
-            } catch (JMSException e) {
-                log.error("Failed receiving message: " + e.getMessage());
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("state", health.name().toLowerCase())
+                .field("broker", uri.toASCIIString())
+                .field("consumers", consumerCount)
+                .field("messages_received", messagesReceived.get())
+                .field("reconnects", reconnects.get());
+        if (health == Health.CONNECTED) {
+            builder.field("connected_since", new Date(connectedSince));
+        }
+        if (lastError != null) {
+            builder.field("last_error", lastError);
+        }
+        return builder;
+    }
+
+    public Health health() {
+        return health;
+    }
+
+    /**
+     * Acknowledges due messages until the consumer is terminated or the connection is lost.
+     */
+    private void consume() throws InterruptedException {
+        while (!terminated.await(ackInterval.millis(), TimeUnit.MILLISECONDS)) {
+            if (connectionLost.getCount() == 0) {
+                return;
             }
-            if ((msg != null) && (msg instanceof TextMessage)) {
-                try {
-                    log.debug("received:\n" + ((TextMessage) msg).getText());
-                    scheduleJobs(map(msg));
-                } catch (Exception e) {
-                    log.error("Failed creating index job: " + e.getMessage());
-                }
+            consumerSession.acknowledgeIfDue();
+        }
+    }
+
+    /**
+     * Returns a random delay between half and all of the given delay, so that several rivers
+     * don't reconnect to a restarted broker at the same time.
+     */
+    private long withJitter(long delay) {
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    @Override
+    public void terminate() {
+        super.terminate();
+        terminated.countDown();
+    }
+
+    private void handle(Message msg) {
+        messagesReceived.incrementAndGet();
+        if (msg instanceof TextMessage) {
+            try {
+                log.debug("received:\n" + ((TextMessage) msg).getText());
+                scheduleJobs(map(msg, debouncePolicy));
+            } catch (Exception e) {
+                log.error("Failed creating index job: " + e.getMessage());
             }
         }
     }
@@ -94,48 +233,110 @@ public class APIMConsumer extends TerminateableRunnable {
 
     private void startup() throws JMSException {
         log.info("Set up ActiveMQ connection to {}...", uri.toASCIIString());
+        health = Health.CONNECTING;
+        connectionLost = new CountDownLatch(1);
 
         ActiveMQConnectionFactory connectionFactory =
                 new ActiveMQConnectionFactory(uri);
         connection = connectionFactory.createConnection();
-        connection.start();
+        connection.setExceptionListener(new ExceptionListener() {
+            @Override
+            public void onException(JMSException e) {
+                lastError = ensureMessage(e);
+                log.error("JMS connection lost: {}", lastError);
+                connectionLost.countDown();
+            }
+        });
+        ((ActiveMQConnection) connection).addTransportListener(new TransportListener() {
+            @Override
+            public void onCommand(Object command) {
+            }
+
+            @Override
+            public void onException(IOException e) {
+            }
 
-        log.debug("Connection started!");
+            @Override
+            public void transportInterupted() {
+                log.warn("JMS transport interrupted, waiting for failover");
+                health = Health.INTERRUPTED;
+            }
 
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        Destination destination = session.createTopic(topicFilter);
+            @Override
+            public void transportResumed() {
+                log.info("JMS transport resumed");
+                health = Health.CONNECTED;
+            }
+        });
+        if (durable && consumerQueue == null) {
+            connection.setClientID(clientId);
+        }
 
-        if (messageSelector == null || messageSelector.isEmpty()) {
-            log.debug("Create message consumer");
-            consumer = session.createConsumer(destination);
+        if (consumerCount > 1) {
+            dispatcher = new Dispatcher(consumerCount);
+        }
+
+        String selector = (messageSelector == null || messageSelector.isEmpty()) ? null : messageSelector;
+        Session session = connection.createSession(false,
+                durable ? Session.CLIENT_ACKNOWLEDGE : Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer;
+        if (consumerQueue != null) {
+            log.debug("Create message consumer for queue {} with selector: {}", consumerQueue, selector);
+            consumer = session.createConsumer(session.createQueue(consumerQueue), selector);
+        } else if (durable) {
+            log.debug("Create durable subscription {} for topic {} with selector: {}", subscriptionName, topicFilter, selector);
+            consumer = session.createDurableSubscriber(session.createTopic(topicFilter), subscriptionName, selector, false);
         } else {
-            log.debug("Create message consumer with selector: {}", messageSelector);
-            consumer = session.createConsumer(destination, messageSelector);
+            log.debug("Create message consumer for topic {} with selector: {}", topicFilter, selector);
+            consumer = session.createConsumer(session.createTopic(topicFilter), selector);
         }
+        consumerSession = new ConsumerSession(session, consumer);
+        consumer.setMessageListener(consumerSession);
 
-        log.info("Connected to JMS broker: " + uri.toASCIIString());
+        connection.start();
+        health = Health.CONNECTED;
+        connectedSince = System.currentTimeMillis();
+        log.info("Connected to JMS broker: {} with {} consumer(s)", uri.toASCIIString(), consumerCount);
     }
 
     private void shutdown() {
-        try {
-            log.debug("Shutdown...");
-            consumer.close();
-        } catch (JMSException e) {
-            log.error("Error closing ActiveMQ consumer: " + e.getMessage());
+        log.debug("Shutdown...");
+        if (connection != null) {
+            try {
+                // waits for running listeners, so every delivered message can be acknowledged
+                connection.stop();
+            } catch (JMSException e) {
+                log.error("Error stopping ActiveMQ connection: " + e.getMessage());
+            }
         }
-        try {
-            session.close();
-        } catch (JMSException e) {
-            log.error("Error closing ActiveMQ session: " + e.getMessage());
+        if (consumerSession != null) {
+            consumerSession.acknowledge();
+            consumerSession.close();
+            consumerSession = null;
         }
-        try {
-            connection.close();
-        } catch (JMSException e) {
-            log.error("Error closing ActiveMQ connection: " + e.getMessage());
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            dispatcher = null;
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                log.error("Error closing ActiveMQ connection: " + e.getMessage());
+            }
+            connection = null;
         }
         log.info("Disconnected from JMS broker: " + uri.toASCIIString());
     }
 
+    public enum Health {
+        CONNECTING,
+        CONNECTED,
+        INTERRUPTED,
+        RECONNECTING,
+        STOPPED
+    }
+
     private String ensureMessage(Exception ex) {
         String message = ex.getMessage();
         if (message == null || message.isEmpty()) {
@@ -146,4 +347,155 @@ public class APIMConsumer extends TerminateableRunnable {
         }
         return message;
     }
+
+    /**
+     * A session with its message consumer. Messages are acknowledged once the batch size is
+     * reached on the delivery thread, or when the acknowledgement interval has passed since the
+     * first unacknowledged message. Acknowledging a message acknowledges all messages the
+     * session delivered before it, so all dispatched messages have to be handled first.
+     */
+    private class ConsumerSession implements MessageListener {
+
+        private final Session session;
+        private final MessageConsumer consumer;
+        private Message lastUnacknowledged;
+        private int unacknowledged = 0;
+        private long firstUnacknowledgedAt;
+
+        ConsumerSession(Session session, MessageConsumer consumer) {
+            this.session = session;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public synchronized void onMessage(Message message) {
+            if (dispatcher == null) {
+                handle(message);
+            } else {
+                dispatcher.dispatch(message);
+            }
+            if (durable) {
+                if (unacknowledged++ == 0) {
+                    firstUnacknowledgedAt = System.currentTimeMillis();
+                }
+                lastUnacknowledged = message;
+                if (unacknowledged >= ackBatchSize) {
+                    acknowledge();
+                }
+            }
+        }
+
+        synchronized void acknowledgeIfDue() {
+            if (unacknowledged > 0 && System.currentTimeMillis() - firstUnacknowledgedAt >= ackInterval.millis()) {
+                acknowledge();
+            }
+        }
+
+        synchronized void acknowledge() {
+            if (lastUnacknowledged == null) {
+                return;
+            }
+            if (dispatcher != null) {
+                try {
+                    dispatcher.awaitHandled();
+                } catch (InterruptedException e) {
+                    log.warn("Interrupted before acknowledging messages, they will be redelivered");
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            if (journal != null) {
+                journal.flush();
+            }
+            try {
+                lastUnacknowledged.acknowledge();
+                log.debug("Acknowledged {} messages", unacknowledged);
+            } catch (JMSException e) {
+                log.error("Failed acknowledging messages, they will be redelivered: " + e.getMessage());
+            }
+            lastUnacknowledged = null;
+            unacknowledged = 0;
+        }
+
+        void close() {
+            try {
+                consumer.close();
+            } catch (JMSException e) {
+                log.error("Error closing ActiveMQ consumer: " + e.getMessage());
+            }
+            try {
+                session.close();
+            } catch (JMSException e) {
+                log.error("Error closing ActiveMQ session: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Hands messages to single-threaded executors chosen by the hash of their PID. The number of
+     * dispatched messages that are not handled yet is bounded, so the session stops receiving
+     * while the dispatch threads are busy.
+     */
+    private class Dispatcher {
+
+        private final ExecutorService[] executors;
+        private final int maxPending;
+        private int pending = 0;
+
+        Dispatcher(int threads) {
+            executors = new ExecutorService[threads];
+            for (int i = 0; i < threads; i++) {
+                executors[i] = Executors.newSingleThreadExecutor(threadFactory);
+            }
+            maxPending = threads * DISPATCH_QUEUE_SIZE;
+        }
+
+        void dispatch(final Message message) {
+            String pid = null;
+            try {
+                pid = message.getStringProperty("pid");
+            } catch (JMSException e) {
+                log.warn("Cannot read PID of JMS message: {}", e.getMessage());
+            }
+            synchronized (this) {
+                while (pending >= maxPending) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                pending++;
+            }
+            int index = (pid == null) ? 0 : (pid.hashCode() & Integer.MAX_VALUE) % executors.length;
+            executors[index].execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(message);
+                    } finally {
+                        handled();
+                    }
+                }
+            });
+        }
+
+        synchronized void awaitHandled() throws InterruptedException {
+            while (pending > 0) {
+                wait();
+            }
+        }
+
+        private synchronized void handled() {
+            pending--;
+            notifyAll();
+        }
+
+        void shutdown() {
+            for (ExecutorService executor : executors) {
+                executor.shutdown();
+            }
+        }
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.jms;
+
+import de.slub.index.IndexJob;
+import de.slub.index.IndexJobJournal;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.river.RiverName;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class APIMConsumerBuilder {
+
+    public static final int DEFAULT_CONSUMERS = 1;
+    public static final int DEFAULT_ACK_BATCH_SIZE = 100;
+    public static final TimeValue DEFAULT_ACK_INTERVAL = TimeValue.timeValueSeconds(1);
+    public static final TimeValue DEFAULT_RECONNECT_DELAY = TimeValue.timeValueSeconds(1);
+    public static final TimeValue DEFAULT_MAX_RECONNECT_DELAY = TimeValue.timeValueSeconds(60);
+
+    private URI brokerUrl;
+    private String messageSelector;
+    private String topicFilter;
+    private String consumerQueue;
+    private int consumers = DEFAULT_CONSUMERS;
+    private boolean durable = false;
+    private String clientId;
+    private String subscriptionName;
+    private int ackBatchSize = DEFAULT_ACK_BATCH_SIZE;
+    private TimeValue ackInterval = DEFAULT_ACK_INTERVAL;
+    private TimeValue reconnectDelay = DEFAULT_RECONNECT_DELAY;
+    private TimeValue maxReconnectDelay = DEFAULT_MAX_RECONNECT_DELAY;
+    private RiverName riverName;
+    private IndexJobJournal journal;
+    private DebouncePolicy debouncePolicy = DebouncePolicy.DEFAULT;
+    private Queue<IndexJob> indexJobQueue;
+    private ThreadFactory threadFactory = Executors.defaultThreadFactory();
+    private ESLogger logger;
+
+    public APIMConsumer build() {
+        if (durable && journal == null) {
+            throw new IllegalStateException("Durable JMS subscription requires the job journal. " +
+                    "Please set journal.enabled in the Fedora River metadata or disable jms.durable.");
+        }
+        String name = (riverName == null) ? "fedora-river" : riverName.name();
+        return new APIMConsumer(
+                brokerUrl,
+                messageSelector,
+                topicFilter,
+                consumerQueue,
+                consumers,
+                durable,
+                (clientId == null) ? "fedora-river-" + name : clientId,
+                (subscriptionName == null) ? name : subscriptionName,
+                ackBatchSize,
+                ackInterval,
+                journal,
+                debouncePolicy,
+                reconnectDelay,
+                maxReconnectDelay,
+                indexJobQueue,
+                threadFactory,
+                logger);
+    }
+
+    public APIMConsumerBuilder settings(Map<String, Object> jmsSettings) throws URISyntaxException {
+        if (jmsSettings.containsKey("brokerUrl")) {
+            brokerUrl = new URI(XContentMapValues.nodeStringValue(jmsSettings.get("brokerUrl"), null));
+        }
+        messageSelector = XContentMapValues.nodeStringValue(jmsSettings.get("messageSelector"), messageSelector);
+        topicFilter = XContentMapValues.nodeStringValue(jmsSettings.get("topicFilter"), topicFilter);
+        consumerQueue = XContentMapValues.nodeStringValue(jmsSettings.get("consumerQueue"), consumerQueue);
+        consumers = XContentMapValues.nodeIntegerValue(jmsSettings.get("consumers"), consumers);
+        durable = XContentMapValues.nodeBooleanValue(jmsSettings.get("durable"), durable);
+        clientId = XContentMapValues.nodeStringValue(jmsSettings.get("clientId"), clientId);
+        subscriptionName = XContentMapValues.nodeStringValue(jmsSettings.get("subscriptionName"), subscriptionName);
+        ackBatchSize = XContentMapValues.nodeIntegerValue(jmsSettings.get("ackBatchSize"), ackBatchSize);
+        ackInterval = XContentMapValues.nodeTimeValue(jmsSettings.get("ackInterval"), ackInterval);
+        reconnectDelay = XContentMapValues.nodeTimeValue(jmsSettings.get("reconnectDelay"), reconnectDelay);
+        maxReconnectDelay = XContentMapValues.nodeTimeValue(jmsSettings.get("maxReconnectDelay"), maxReconnectDelay);
+        if (jmsSettings.containsKey("debounce")) {
+            debounce(XContentMapValues.nodeMapValue(jmsSettings.get("debounce"), "debounce"));
+        }
+        return this;
+    }
+
+    private void debounce(Map<String, Object> debounceSettings) {
+        Map<String, TimeValue> quietPeriods = new HashMap<>();
+        if (debounceSettings.containsKey("quietPeriods")) {
+            Map<String, Object> quietPeriodSettings =
+                    XContentMapValues.nodeMapValue(debounceSettings.get("quietPeriods"), "quietPeriods");
+            for (Map.Entry<String, Object> entry : quietPeriodSettings.entrySet()) {
+                quietPeriods.put(entry.getKey(),
+                        XContentMapValues.nodeTimeValue(entry.getValue(), DebouncePolicy.DEFAULT_QUIET_PERIOD));
+            }
+        }
+        TimeValue maxWait = XContentMapValues.nodeTimeValue(debounceSettings.get("maxWait"), DebouncePolicy.DEFAULT_MAX_WAIT);
+        debouncePolicy = new DebouncePolicy(quietPeriods, maxWait);
+    }
+
+    public APIMConsumerBuilder brokerUrl(URI brokerUrl) {
+        this.brokerUrl = brokerUrl;
+        return this;
+    }
+
+    public APIMConsumerBuilder messageSelector(String messageSelector) {
+        this.messageSelector = messageSelector;
+        return this;
+    }
+
+    public APIMConsumerBuilder topicFilter(String topicFilter) {
+        this.topicFilter = topicFilter;
+        return this;
+    }
+
+    public APIMConsumerBuilder consumerQueue(String consumerQueue) {
+        this.consumerQueue = consumerQueue;
+        return this;
+    }
+
+    public APIMConsumerBuilder consumers(int consumers) {
+        this.consumers = consumers;
+        return this;
+    }
+
+    public APIMConsumerBuilder durable(boolean durable) {
+        this.durable = durable;
+        return this;
+    }
+
+    public APIMConsumerBuilder clientId(String clientId) {
+        this.clientId = clientId;
+        return this;
+    }
+
+    public APIMConsumerBuilder subscriptionName(String subscriptionName) {
+        this.subscriptionName = subscriptionName;
+        return this;
+    }
+
+    public APIMConsumerBuilder ackBatchSize(int ackBatchSize) {
+        this.ackBatchSize = ackBatchSize;
+        return this;
+    }
+
+    public APIMConsumerBuilder ackInterval(TimeValue ackInterval) {
+        this.ackInterval = ackInterval;
+        return this;
+    }
+
+    public APIMConsumerBuilder reconnectDelay(TimeValue reconnectDelay) {
+        this.reconnectDelay = reconnectDelay;
+        return this;
+    }
+
+    public APIMConsumerBuilder maxReconnectDelay(TimeValue maxReconnectDelay) {
+        this.maxReconnectDelay = maxReconnectDelay;
+        return this;
+    }
+
+    public APIMConsumerBuilder riverName(RiverName riverName) {
+        this.riverName = riverName;
+        return this;
+    }
+
+    public APIMConsumerBuilder debouncePolicy(DebouncePolicy debouncePolicy) {
+        this.debouncePolicy = debouncePolicy;
+        return this;
+    }
+
+    public APIMConsumerBuilder journal(IndexJobJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    public APIMConsumerBuilder indexJobQueue(Queue<IndexJob> indexJobQueue) {
+        this.indexJobQueue = indexJobQueue;
+        return this;
+    }
+
+    public APIMConsumerBuilder threadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+        return this;
+    }
+
+    public APIMConsumerBuilder logger(ESLogger logger) {
+        this.logger = logger;
+        return this;
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.jms;
+
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Quiet periods and maximum wait for the index jobs of API-M messages.
+ * <p/>
+ * Jobs of a message become due once no further message for the same document has arrived within
+ * the quiet period of its method. Repeated messages postpone a queued job, but never beyond the
+ * maximum wait after the first of them, so a document is indexed at most once per window and
+ * continuously changing documents are still indexed in time.
+ */
+public class DebouncePolicy {
+
+    public static final TimeValue DEFAULT_QUIET_PERIOD = TimeValue.timeValueSeconds(1);
+    public static final TimeValue DEFAULT_MAX_WAIT = TimeValue.timeValueSeconds(60);
+    public static final Map<String, TimeValue> DEFAULT_QUIET_PERIODS;
+    public static final DebouncePolicy DEFAULT;
+
+    static {
+        Map<String, TimeValue> quietPeriods = new HashMap<>();
+        quietPeriods.put("ingest", TimeValue.timeValueSeconds(1));
+        quietPeriods.put("addDatastream", TimeValue.timeValueSeconds(1));
+        quietPeriods.put("modifyObject", TimeValue.timeValueSeconds(5));
+        quietPeriods.put("modifyDatastreamByReference", TimeValue.timeValueSeconds(5));
+        quietPeriods.put("modifyDatastreamByValue", TimeValue.timeValueSeconds(5));
+        quietPeriods.put("setDatastreamState", TimeValue.timeValueSeconds(5));
+        quietPeriods.put("purgeObject", TimeValue.timeValueMillis(0));
+        quietPeriods.put("purgeDatastream", TimeValue.timeValueMillis(0));
+        DEFAULT_QUIET_PERIODS = Collections.unmodifiableMap(quietPeriods);
+        DEFAULT = new DebouncePolicy(DEFAULT_QUIET_PERIODS, DEFAULT_MAX_WAIT);
+    }
+
+    private final Map<String, Long> quietPeriods = new HashMap<>();
+    private final long maxWait;
+
+    /**
+     * @param quietPeriods Quiet periods by method name, overriding the defaults
+     * @param maxWait      Longest time the jobs of a document are postponed
+     */
+    public DebouncePolicy(Map<String, TimeValue> quietPeriods, TimeValue maxWait) {
+        for (Map.Entry<String, TimeValue> entry : DEFAULT_QUIET_PERIODS.entrySet()) {
+            this.quietPeriods.put(entry.getKey(), entry.getValue().millis());
+        }
+        for (Map.Entry<String, TimeValue> entry : quietPeriods.entrySet()) {
+            this.quietPeriods.put(entry.getKey(), entry.getValue().millis());
+        }
+        this.maxWait = maxWait.millis();
+    }
+
+    /**
+     * Returns the quiet period of the method in milliseconds, at most the maximum wait.
+     */
+    public long quietPeriod(String methodName) {
+        Long quietPeriod = quietPeriods.get(methodName);
+        return Math.min(maxWait, (quietPeriod == null) ? DEFAULT_QUIET_PERIOD.millis() : quietPeriod);
+    }
+
+    public long maxWait() {
+        return maxWait;
+    }
+
+}
@@ -19,21 +19,17 @@ package de.slub.fedora.jms;
 import de.slub.index.DatastreamIndexJob;
 import de.slub.index.IndexJob;
 import de.slub.index.ObjectIndexJob;
-import org.apache.commons.io.IOUtils;
-import org.w3c.dom.Document;
-import org.xml.sax.SAXException;
 
+import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.TextMessage;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import java.io.IOException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -41,54 +37,107 @@ import static de.slub.index.IndexJob.Type.CREATE;
 import static de.slub.index.IndexJob.Type.DELETE;
 import static de.slub.index.IndexJob.Type.UPDATE;
 
+/**
+ * Maps Fedora API-M messages to index jobs.
+ * <p/>
+ * Jobs are delayed by the quiet period of the message's method and must not be postponed
+ * beyond the maximum wait of the {@link DebouncePolicy}.
+ * <p/>
+ * The datastream ID is only read from the Atom entry of messages for datastream methods.
+ * The entry is streamed until the <code>fedora-types:dsID</code> category is found, with a
+ * stream factory per thread, so messages can be mapped by several consumers at once.
+ */
 public class MessageMapper {
 
-    private static final DocumentBuilderFactory documentBuilderFactory =
-            DocumentBuilderFactory.newInstance();
-    private static final XPathFactory xPathFactory;
-    private static final XPath xPath;
+    private static final String DSID_SCHEME = "fedora-types:dsID";
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+    };
+
+    public static List<IndexJob> map(Message message) throws JMSException, XMLStreamException {
+        return map(message, DebouncePolicy.DEFAULT);
+    }
+
+    public static List<IndexJob> map(Message message, DebouncePolicy debouncePolicy) throws JMSException, XMLStreamException {
+        return map(
+                message.getStringProperty("pid"),
+                message.getStringProperty("methodName"),
+                ((TextMessage) message).getText(),
+                debouncePolicy);
+    }
 
-    static {
-        xPathFactory = XPathFactory.newInstance();
-        xPath = xPathFactory.newXPath();
+    public static List<IndexJob> map(String pid, String methodName, String text) throws XMLStreamException {
+        return map(pid, methodName, text, DebouncePolicy.DEFAULT);
     }
 
-    public static List<IndexJob> map(Message message) throws Exception {
-        ArrayList<IndexJob> indexJobs = new ArrayList<>();
-        String pid = message.getStringProperty("pid");
-        String dsid = extractDsId(((TextMessage) message).getText());
-        String methodName = message.getStringProperty("methodName");
+    public static List<IndexJob> map(String pid, String methodName, String text, DebouncePolicy debouncePolicy)
+            throws XMLStreamException {
+        if (methodName == null) {
+            return Collections.emptyList();
+        }
+        long delay = debouncePolicy.quietPeriod(methodName);
+        List<IndexJob> indexJobs = new ArrayList<>(2);
         switch (methodName) {
             case "ingest":
-                indexJobs.add(new ObjectIndexJob(CREATE, pid, 1, TimeUnit.SECONDS));
+                indexJobs.add(new ObjectIndexJob(CREATE, pid, delay, TimeUnit.MILLISECONDS));
                 break;
             case "addDatastream":
-                indexJobs.add(new DatastreamIndexJob(CREATE, pid, dsid, 1, TimeUnit.SECONDS));
+                indexJobs.add(new DatastreamIndexJob(CREATE, pid, extractDsId(text), delay, TimeUnit.MILLISECONDS));
                 break;
             case "purgeObject":
-                indexJobs.add(new ObjectIndexJob(DELETE, pid));
+                indexJobs.add(new ObjectIndexJob(DELETE, pid, delay, TimeUnit.MILLISECONDS));
                 break;
             case "purgeDatastream":
-                indexJobs.add(new DatastreamIndexJob(DELETE, pid, dsid));
+                indexJobs.add(new DatastreamIndexJob(DELETE, pid, extractDsId(text), delay, TimeUnit.MILLISECONDS));
                 break;
             case "modifyObject":
-                indexJobs.add(new ObjectIndexJob(UPDATE, pid, 5, TimeUnit.SECONDS));
+                indexJobs.add(new ObjectIndexJob(UPDATE, pid, delay, TimeUnit.MILLISECONDS));
                 break;
             case "modifyDatastreamByReference":
             case "modifyDatastreamByValue":
             case "setDatastreamState":
-                indexJobs.add(new ObjectIndexJob(UPDATE, pid, dsid, 1, TimeUnit.SECONDS));
-                indexJobs.add(new DatastreamIndexJob(UPDATE, pid, dsid, 5, TimeUnit.SECONDS));
+                String dsid = extractDsId(text);
+                indexJobs.add(new ObjectIndexJob(UPDATE, pid, dsid, delay, TimeUnit.MILLISECONDS));
+                indexJobs.add(new DatastreamIndexJob(UPDATE, pid, dsid, delay, TimeUnit.MILLISECONDS));
                 break;
         }
+        if (!indexJobs.isEmpty()) {
+            long maxDeadline = indexJobs.get(0).deadline() - delay + debouncePolicy.maxWait();
+            for (IndexJob job : indexJobs) {
+                job.maxDeadline(maxDeadline);
+            }
+        }
         return indexJobs;
     }
 
-    private static String extractDsId(String text) throws IOException, SAXException, ParserConfigurationException, XPathExpressionException {
-        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
-        Document document = documentBuilder.parse(IOUtils.toInputStream(text));
-
-        return (String) xPath.evaluate("/entry/category[@scheme='fedora-types:dsID']/@term", document, XPathConstants.STRING);
+    static String extractDsId(String text) throws XMLStreamException {
+        XMLStreamReader reader = xmlInputFactory.get().createXMLStreamReader(new StringReader(text));
+        try {
+            int depth = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 2
+                            && "category".equals(reader.getLocalName())
+                            && DSID_SCHEME.equals(reader.getAttributeValue(null, "scheme"))) {
+                        String term = reader.getAttributeValue(null, "term");
+                        return (term == null) ? "" : term;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+            return "";
+        } finally {
+            reader.close();
+        }
     }
 
 }
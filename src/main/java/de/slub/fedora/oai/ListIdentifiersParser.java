@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.oai;
+
+import javax.xml.bind.DatatypeConverter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming parser for OAI-PMH <code>ListIdentifiers</code> responses.
+ * <p/>
+ * Headers are passed to a {@link HeaderHandler} while the response is still being read,
+ * the resumption token and its expiration date are picked up in the same pass.
+ * Instances are not meant to be shared between threads.
+ */
+public class ListIdentifiersParser {
+
+    private final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    public ListIdentifiersParser() {
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    public OaiRunResult parse(InputStream content, Date timeOfRun, HeaderHandler handler)
+            throws XMLStreamException {
+
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(content);
+        String resumptionToken = "";
+        Date expirationDate = null;
+        boolean inHeader = false;
+        String identifier = null;
+        Date datestamp = null;
+        boolean deleted = false;
+        List<String> setSpecs = null;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("header".equals(name)) {
+                        inHeader = true;
+                        identifier = null;
+                        datestamp = null;
+                        deleted = "deleted".equals(reader.getAttributeValue(null, "status"));
+                        setSpecs = new ArrayList<>(1);
+                    } else if (inHeader && "identifier".equals(name)) {
+                        identifier = reader.getElementText().trim();
+                    } else if (inHeader && "datestamp".equals(name)) {
+                        datestamp = parseDatestamp(reader.getElementText().trim());
+                    } else if (inHeader && "setSpec".equals(name)) {
+                        setSpecs.add(reader.getElementText().trim());
+                    } else if ("resumptionToken".equals(name)) {
+                        String s = reader.getAttributeValue(null, "expirationDate");
+                        if (s != null && !s.isEmpty()) {
+                            expirationDate = DatatypeConverter.parseDateTime(s).getTime();
+                        }
+                        resumptionToken = reader.getElementText().trim();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && "header".equals(reader.getLocalName())) {
+                    inHeader = false;
+                    if (identifier != null) {
+                        handler.header(new OaiHeader(identifier, datestamp, deleted, setSpecs));
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new OaiRunResult(timeOfRun, expirationDate, resumptionToken);
+    }
+
+    private Date parseDatestamp(String s) {
+        try {
+            return s.isEmpty() ? null : DatatypeConverter.parseDateTime(s).getTime();
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    public interface HeaderHandler {
+        void header(OaiHeader header);
+    }
+
+}
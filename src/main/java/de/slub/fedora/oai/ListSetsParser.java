@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.oai;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.Collection;
+
+/**
+ * Streaming parser for OAI-PMH <code>ListSets</code> responses.
+ */
+public class ListSetsParser {
+
+    private final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+
+    public ListSetsParser() {
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * Adds the <code>setSpec</code> of every listed set to the given collection.
+     *
+     * @return The resumption token of the response or an empty string if the list is complete
+     */
+    public String parse(InputStream content, Collection<String> setSpecs) throws XMLStreamException {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(content);
+        String resumptionToken = "";
+        boolean inSet = false;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+                    if ("set".equals(name)) {
+                        inSet = true;
+                    } else if (inSet && "setSpec".equals(name)) {
+                        setSpecs.add(reader.getElementText().trim());
+                    } else if ("resumptionToken".equals(name)) {
+                        resumptionToken = reader.getElementText().trim();
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT
+                        && "set".equals(reader.getLocalName())) {
+                    inSet = false;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return resumptionToken;
+    }
+
+}
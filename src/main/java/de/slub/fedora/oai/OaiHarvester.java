@@ -24,23 +24,22 @@ import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.river.RiverName;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
 
 import javax.ws.rs.core.UriBuilder;
 import javax.xml.bind.DatatypeConverter;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.*;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -49,24 +48,40 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 public class OaiHarvester extends TerminateableRunnable {
 
     private static final OaiRunResult EMPTY_OAI_RUN_RESULT = new OaiRunResult();
-    private static final SimpleDateFormat FCREPO3_TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'hh:mm:ss");
+    private static final String FCREPO3_TIMESTAMP_PATTERN = "yyyy-MM-dd'T'HH:mm:ss";
+    private static final String LASTRUN_ID = "_last";
+    private static final String BACKFILL_ID = "_last_backfill";
+    private static final String BACKFILL_WINDOW_ID_PREFIX = "_last_window_";
+    private static final String SET_ID_PREFIX = "_last_set_";
+    private static final String UNASSIGNED_ID = "_last_unassigned";
+    private static final String LAST_MODIFIED_DATE_FIELD = "LAST_MODIFIED_DATE";
+    private static final int MULTI_GET_BATCH_SIZE = 1000;
+    private static final long QUEUE_POLL_MILLIS = 100;
     private final Client client;
     private final TimeValue interval;
     private final Queue<IndexJob> jobQueue;
     private final ESLogger logger;
     private final RiverName riverName;
     private final URI uri;
+    private final int maxQueueSize;
+    private final Date backfillFrom;
+    private final TimeValue backfillWindow;
+    private final int backfillThreads;
+    private final List<String> sets;
+    private final boolean discoverSets;
+    private final int setThreads;
+    private final String indexName;
+    private final ExecutorService prefetcher;
+    private final ExecutorService chainHarvester;
+    private final CloseableHttpClient httpClient;
 
     protected OaiHarvester(
             URL harvestingUrl,
@@ -74,7 +89,16 @@ public class OaiHarvester extends TerminateableRunnable {
             Client esClient,
             RiverName riverName,
             Queue<IndexJob> indexJobQueue,
-            ESLogger logger) throws URISyntaxException {
+            ESLogger logger,
+            int maxQueueSize,
+            CloseableHttpClient httpClient,
+            Date backfillFrom,
+            TimeValue backfillWindow,
+            int backfillThreads,
+            List<String> sets,
+            boolean discoverSets,
+            int setThreads,
+            String indexName) throws URISyntaxException {
 
         this.uri = harvestingUrl.toURI();
         this.interval = pollInterval;
@@ -82,8 +106,35 @@ public class OaiHarvester extends TerminateableRunnable {
         this.jobQueue = indexJobQueue;
         this.riverName = riverName;
         this.logger = logger;
+        this.maxQueueSize = maxQueueSize;
+        this.httpClient = httpClient;
+        this.backfillFrom = backfillFrom;
+        this.backfillWindow = backfillWindow;
+        this.backfillThreads = backfillThreads;
+        this.sets = sets;
+        this.discoverSets = discoverSets;
+        this.setThreads = setThreads;
+        this.indexName = indexName;
+        this.prefetcher = Executors.newCachedThreadPool(
+                EsExecutors.daemonThreadFactory("fedora-river-oaiPrefetch"));
+        if (isSetHarvest()) {
+            this.chainHarvester = Executors.newFixedThreadPool(setThreads,
+                    EsExecutors.daemonThreadFactory("fedora-river-oaiSets"));
+        } else if (backfillFrom != null) {
+            this.chainHarvester = Executors.newFixedThreadPool(backfillThreads,
+                    EsExecutors.daemonThreadFactory("fedora-river-oaiBackfill"));
+        } else {
+            this.chainHarvester = null;
+        }
 
         this.logger.info("Harvesting URL: {} every {}", this.uri.toASCIIString(), this.interval.format());
+        if (isSetHarvest()) {
+            this.logger.info("Harvesting {} on {} threads",
+                    discoverSets ? "all top-level sets" : "sets " + sets, setThreads);
+        } else if (backfillFrom != null) {
+            this.logger.info("Initial harvest from {} in windows of {} on {} threads",
+                    backfillFrom, backfillWindow.format(), backfillThreads);
+        }
     }
 
     @Override
@@ -91,30 +142,335 @@ public class OaiHarvester extends TerminateableRunnable {
         try {
             harvestLoop();
         } catch (Exception e) {
-            logger.error(ensureMessage(e));
+            if (isRunning()) {
+                // otherwise the executors have been shut down by terminate()
+                logger.error(ensureMessage(e));
+            }
+        } finally {
+            shutdownExecutors();
+        }
+    }
+
+    @Override
+    public void terminate() {
+        super.terminate();
+        shutdownExecutors();
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            logger.warn("Cannot close OAI HTTP client: {}", e.getMessage());
         }
     }
 
-    private void harvestLoop() {
+    private void harvestLoop() throws Exception {
+        final Chain incremental = new Chain(LASTRUN_ID, null, null);
+        boolean complete = true;
         while (isRunning()) {
-            if (waitForNextRun(getLastrunParameters())) {
+            if (waitForNextRun(getLastrunParameters(), complete)) {
                 // update last run info in case it has been changed while waiting
                 final OaiRunResult lastrun = getLastrunParameters();
-                final OaiRunResult newlastrun = harvest(lastrun);
-                writeLastrun(newlastrun);
+                if (isSetHarvest()) {
+                    complete = harvestSets();
+                } else if (backfillFrom != null && !lastrun.hasTimestamp()) {
+                    complete = backfill();
+                } else {
+                    complete = harvestPages(incremental, lastrun);
+                }
+            }
+        }
+    }
+
+    /**
+     * Harvests page after page as long as there is a resumption token. Identifiers are enqueued
+     * while a page is read, the next page is requested in the background while the current page
+     * is checkpointed.
+     *
+     * @return True, if the last page has been harvested. False, if a request failed or the
+     * harvester has been terminated. The checkpoint then still points to the failed page.
+     */
+    private boolean harvestPages(final Chain chain, OaiRunResult lastrun) throws Exception {
+        OaiPage page = harvest(chain, lastrun);
+        while (page != null && !page.failed) {
+            Future<OaiPage> next = null;
+            if (isRunning() && page.result.hasResumptionToken() && awaitQueueCapacity()) {
+                final OaiRunResult pageResult = page.result;
+                next = prefetcher.submit(new Callable<OaiPage>() {
+                    @Override
+                    public OaiPage call() {
+                        return harvest(chain, pageResult);
+                    }
+                });
+            }
+            writeCheckpoint(chain.checkpointId, page.result, false);
+            if (next == null) {
+                return !page.result.hasResumptionToken();
+            }
+            page = next.get();
+        }
+        return false;
+    }
+
+    /**
+     * Harvests the repository in time windows, several windows at once. Every window has its own
+     * checkpoint, so an interrupted backfill only repeats the pages that were not done. The plan
+     * of windows is stored and reused until the backfill is complete. When all windows are done,
+     * the incremental harvest continues from the time the backfill was planned.
+     *
+     * @return True, if all windows have been harvested.
+     */
+    private boolean backfill() throws Exception {
+        Map<String, Object> plan = readCheckpointSource(BACKFILL_ID);
+        if (plan == null) {
+            plan = new HashMap<>();
+            plan.put("from", backfillFrom);
+            plan.put("until", now());
+            plan.put("window", backfillWindow.millis());
+            client.prepareIndex(riverName.getName(), riverName.type(), BACKFILL_ID)
+                    .setSource(plan)
+                    .execute().actionGet();
+            plan = readCheckpointSource(BACKFILL_ID);
+        }
+        final Date from = getDate(plan, "from");
+        final Date until = getDate(plan, "until");
+        final long window = ((Number) plan.get("window")).longValue();
+
+        List<Chain> windows = new ArrayList<>();
+        for (long start = from.getTime(); start < until.getTime(); start += window) {
+            windows.add(new Chain(BACKFILL_WINDOW_ID_PREFIX + windows.size(),
+                    new Date(start), new Date(Math.min(start + window, until.getTime()))));
+        }
+        logger.info("Backfilling {} windows from {} until {}", windows.size(), from, until);
+
+        boolean complete = harvestChains(windows);
+
+        if (complete) {
+            writeCheckpoint(LASTRUN_ID, new OaiRunResult(until, null, null), false);
+            BulkRequestBuilder cleanup = client.prepareBulk();
+            cleanup.add(client.prepareDelete(riverName.getName(), riverName.type(), BACKFILL_ID));
+            for (Chain chain : windows) {
+                cleanup.add(client.prepareDelete(riverName.getName(), riverName.type(), chain.checkpointId));
+            }
+            cleanup.execute().actionGet();
+            logger.info("Backfill complete, harvesting changes since {}", until);
+        } else {
+            logger.warn("Backfill incomplete, continuing with the next run");
+        }
+        return complete;
+    }
+
+    /**
+     * Harvests every set in a chain of its own, several sets at once. Discovered sets are
+     * accompanied by a chain over the whole repository that only enqueues items of no discovered
+     * set, so objects outside of all sets are indexed too. Once all chains are complete, the
+     * incremental checkpoint is moved to the start of the round, so switching back to plain
+     * harvesting continues from there.
+     *
+     * @return True, if all sets have been harvested.
+     */
+    private boolean harvestSets() throws Exception {
+        Date start = now();
+        List<String> setSpecs = sets;
+        if (discoverSets) {
+            try {
+                setSpecs = listTopLevelSets();
+            } catch (Exception ex) {
+                logger.error("Cannot list OAI sets: {}", ensureMessage(ex));
+                return false;
+            }
+        }
+        List<Chain> chains = new ArrayList<>();
+        for (String setSpec : setSpecs) {
+            chains.add(new Chain(SET_ID_PREFIX + setSpec, setSpec));
+        }
+        if (discoverSets) {
+            chains.add(new Chain(UNASSIGNED_ID, new HashSet<>(setSpecs)));
+        }
+        boolean complete = harvestChains(chains);
+        if (complete) {
+            writeCheckpoint(LASTRUN_ID, new OaiRunResult(start, null, null), false);
+        }
+        return complete;
+    }
+
+    /**
+     * Requests all sets of the repository. Sets below other sets are left out, since the
+     * harvest of a set includes its subsets.
+     */
+    private List<String> listTopLevelSets() throws Exception {
+        ListSetsParser parser = new ListSetsParser();
+        List<String> setSpecs = new ArrayList<>();
+        String resumptionToken = "";
+        do {
+            UriBuilder builder = UriBuilder.fromUri(uri).queryParam("verb", "ListSets");
+            if (!resumptionToken.isEmpty()) {
+                builder.queryParam("resumptionToken", resumptionToken);
+            }
+            try (CloseableHttpResponse httpResponse = httpClient.execute(new HttpGet(builder.build()))) {
+                if (httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK
+                        || httpResponse.getEntity() == null) {
+                    throw new IOException("Unexpected OAI service response: "
+                            + httpResponse.getStatusLine().getStatusCode() + " "
+                            + httpResponse.getStatusLine().getReasonPhrase());
+                }
+                resumptionToken = parser.parse(httpResponse.getEntity().getContent(), setSpecs);
+            }
+        } while (!resumptionToken.isEmpty() && isRunning());
+
+        List<String> topLevelSets = new ArrayList<>();
+        for (String setSpec : setSpecs) {
+            if (setSpec.indexOf(':') < 0) topLevelSets.add(setSpec);
+        }
+        logger.debug("Found {} top-level OAI sets", topLevelSets.size());
+        return topLevelSets;
+    }
+
+    /**
+     * Harvests the given chains concurrently on the pool of set or backfill threads.
+     *
+     * @return True, if all chains have been harvested completely.
+     */
+    private boolean harvestChains(List<Chain> chains) throws InterruptedException {
+        boolean complete = true;
+        List<Future<Boolean>> results = new ArrayList<>();
+        try {
+            for (final Chain chain : chains) {
+                results.add(chainHarvester.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return harvestChain(chain);
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                try {
+                    complete &= result.get();
+                } catch (ExecutionException ex) {
+                    logger.error("Harvesting OAI chain failed: {}", ensureMessage((Exception) ex.getCause()));
+                    complete = false;
+                }
+            }
+        } finally {
+            // stops the remaining chains if waiting has been interrupted
+            for (Future<Boolean> result : results) {
+                result.cancel(true);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Continues a chain from its checkpoint. Chains of time windows are marked as done once
+     * they are complete, other chains continue from the time of their last run.
+     */
+    private boolean harvestChain(Chain chain) throws Exception {
+        Map<String, Object> checkpoint = readCheckpointSource(chain.checkpointId);
+        if (checkpoint != null && Boolean.TRUE.equals(checkpoint.get("done"))) {
+            return true;
+        }
+        OaiRunResult lastrun = (checkpoint == null) ? EMPTY_OAI_RUN_RESULT : toRunResult(checkpoint);
+        boolean complete = harvestPages(chain, lastrun);
+        if (complete && chain.until != null) {
+            writeCheckpoint(chain.checkpointId, EMPTY_OAI_RUN_RESULT, true);
+            logger.debug("Harvested window from {} until {}", chain.from, chain.until);
+        }
+        return complete;
+    }
+
+    private boolean isSetHarvest() {
+        return discoverSets || !sets.isEmpty();
+    }
+
+    private void shutdownExecutors() {
+        prefetcher.shutdownNow();
+        if (chainHarvester != null) {
+            chainHarvester.shutdownNow();
+        }
+    }
+
+    private boolean awaitQueueCapacity() throws InterruptedException {
+        while (isRunning()) {
+            if (jobQueue.size() < maxQueueSize) {
+                return true;
+            }
+            TimeUnit.MILLISECONDS.sleep(QUEUE_POLL_MILLIS);
+        }
+        return false;
+    }
+
+    /**
+     * Enqueues jobs for a batch of headers. Deleted items are removed from the index, other items
+     * are only indexed if they have been modified since they were indexed last.
+     */
+    private void enqueue(List<OaiHeader> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Map<String, Date> indexed = lookupLastModifiedDates(batch);
+        for (OaiHeader header : batch) {
+            String localIdentifier = getLocalIdentifier(header.getIdentifier());
+            IndexJob job;
+            if (header.isDeleted()) {
+                job = new ObjectIndexJob(IndexJob.Type.DELETE, localIdentifier);
+            } else if (isIndexed(header, indexed.get(localIdentifier))) {
+                logger.debug("Skipping {}, not modified since last indexed", localIdentifier);
+                continue;
+            } else {
+                job = new ObjectIndexJob(IndexJob.Type.CREATE, localIdentifier);
             }
+            boolean added = jobQueue.add(job.lane(IndexJob.Lane.BACKFILL));
+            if (added) logger.debug("Added {} to job queue", job);
         }
     }
 
-    private boolean waitForNextRun(OaiRunResult lastrun) {
+    private boolean isIndexed(OaiHeader header, Date lastModified) {
+        // datestamps have a granularity of seconds
+        return header.getDatestamp() != null && lastModified != null
+                && header.getDatestamp().getTime() <= lastModified.getTime() - lastModified.getTime() % 1000;
+    }
+
+    /**
+     * Looks up the last modification date of the indexed objects of the given headers.
+     */
+    private Map<String, Date> lookupLastModifiedDates(List<OaiHeader> headers) {
+        Map<String, Date> dates = new HashMap<>();
+        if (indexName == null) {
+            return dates;
+        }
+        MultiGetRequestBuilder request = client.prepareMultiGet();
+        for (OaiHeader header : headers) {
+            if (!header.isDeleted() && header.getDatestamp() != null) {
+                request.add(new MultiGetRequest.Item(indexName, ObjectIndexJob.ES_TYPE_NAME,
+                        getLocalIdentifier(header.getIdentifier()))
+                        .fetchSourceContext(new FetchSourceContext(LAST_MODIFIED_DATE_FIELD)));
+            }
+        }
+        if (request.request().getItems().isEmpty()) {
+            return dates;
+        }
+        try {
+            for (MultiGetItemResponse item : request.execute().actionGet()) {
+                if (!item.isFailed() && item.getResponse().isExists()) {
+                    Date lastModified = getDate(item.getResponse().getSourceAsMap(), LAST_MODIFIED_DATE_FIELD);
+                    if (lastModified != null) {
+                        dates.put(item.getId(), lastModified);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            logger.warn("Cannot look up indexed objects, enqueuing all: {}", ensureMessage(ex));
+        }
+        return dates;
+    }
+
+    private boolean waitForNextRun(OaiRunResult lastrun, boolean lastRunComplete) {
         Date start = now();
         TimeValue waitTime = interval;
 
         if (lastrun.isInFuture(start)) {
             long delta = lastrun.getTimestamp().getTime() - start.getTime();
             waitTime = TimeValue.timeValueMillis(delta);
-        } else if (lastrun.hasResumptionToken()) {
-            waitTime = TimeValue.timeValueSeconds(1);
+        } else if (lastrun.hasResumptionToken() && lastRunComplete) {
+            waitTime = TimeValue.timeValueMillis(0);
         }
 
         try {
@@ -126,9 +482,9 @@ public class OaiHarvester extends TerminateableRunnable {
         }
     }
 
-    private OaiRunResult harvest(OaiRunResult lastRun) {
+    private OaiPage harvest(Chain chain, OaiRunResult lastRun) {
         Date timeOfRun = now();
-        URI uri = buildOaiRequestURI(timeOfRun, lastRun);
+        URI uri = buildOaiRequestURI(timeOfRun, lastRun, chain);
 
         final Date lastRunTimestamp = lastRun.getTimestamp();
         if (lastRunTimestamp != null) logger.debug("Last OAI run was at {}", lastRunTimestamp);
@@ -136,14 +492,13 @@ public class OaiHarvester extends TerminateableRunnable {
         logger.debug("Requesting {}", uri.toASCIIString());
 
         HttpGet httpGet = new HttpGet(uri);
-        CloseableHttpClient httpClient = HttpClients.createMinimal();
 
-        OaiRunResult result = EMPTY_OAI_RUN_RESULT;
+        OaiPage result = OaiPage.FAILED;
         try (CloseableHttpResponse httpResponse = httpClient.execute(httpGet)) {
             if (httpResponse.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
                 HttpEntity httpEntity = httpResponse.getEntity();
                 if (httpEntity != null) {
-                    result = handleXmlResult(httpEntity.getContent(), timeOfRun);
+                    result = handleXmlResult(httpEntity.getContent(), timeOfRun, chain);
                 } else {
                     logger.warn("Got empty response from OAI service.");
                 }
@@ -153,7 +508,10 @@ public class OaiHarvester extends TerminateableRunnable {
                         httpResponse.getStatusLine().getReasonPhrase());
             }
         } catch (Exception ex) {
-            logger.error(ensureMessage(ex));
+            if (isRunning()) {
+                // otherwise the client has been closed by terminate()
+                logger.error(ensureMessage(ex));
+            }
         }
         return result;
     }
@@ -176,13 +534,9 @@ public class OaiHarvester extends TerminateableRunnable {
     private OaiRunResult getLastrunParameters() {
         OaiRunResult result = EMPTY_OAI_RUN_RESULT;
         try {
-            GetResponse response = client.prepareGet(riverName.name(), riverName.type(), "_last").execute().actionGet();
-            if (response.isExists()) {
-                Map<String, Object> src = response.getSourceAsMap();
-                result = new OaiRunResult(
-                        getDate(src, "timestamp"),
-                        getDate(src, "expiration_date"),
-                        (String) src.get("resumption_token"));
+            Map<String, Object> src = readCheckpointSource(LASTRUN_ID);
+            if (src != null) {
+                result = toRunResult(src);
             }
         } catch (Exception _) {
             logger.warn("Error parsing the '_last' river run document. Assuming there was no run...");
@@ -190,6 +544,18 @@ public class OaiHarvester extends TerminateableRunnable {
         return result;
     }
 
+    private Map<String, Object> readCheckpointSource(String id) {
+        GetResponse response = client.prepareGet(riverName.name(), riverName.type(), id).execute().actionGet();
+        return response.isExists() ? response.getSourceAsMap() : null;
+    }
+
+    private OaiRunResult toRunResult(Map<String, Object> src) {
+        return new OaiRunResult(
+                getDate(src, "timestamp"),
+                getDate(src, "expiration_date"),
+                (String) src.get("resumption_token"));
+    }
+
     private Date getDate(Map<String, Object> src, String param) {
         if (src.containsKey(param)) {
             String s = (String) src.get(param);
@@ -200,7 +566,7 @@ public class OaiHarvester extends TerminateableRunnable {
         return null;
     }
 
-    private URI buildOaiRequestURI(Date now, OaiRunResult lastrun) {
+    private URI buildOaiRequestURI(Date now, OaiRunResult lastrun, Chain chain) {
         UriBuilder builder = UriBuilder.fromUri(uri)
                 .queryParam("verb", "ListIdentifiers");
 
@@ -208,18 +574,33 @@ public class OaiHarvester extends TerminateableRunnable {
             builder.queryParam("resumptionToken", lastrun.getResumptionToken());
         } else {
             builder.queryParam("metadataPrefix", "oai_dc");
-            if (lastrun.hasTimestamp()) {
-                builder.queryParam("from", FCREPO3_TIMESTAMP_FORMAT.format(lastrun.getTimestamp()));
+            Date from = (chain.from != null) ? chain.from : lastrun.getTimestamp();
+            if (from != null) {
+                builder.queryParam("from", formatTimestamp(from));
+            }
+            if (chain.until != null) {
+                builder.queryParam("until", formatTimestamp(chain.until));
+            }
+            if (chain.setSpec != null) {
+                builder.queryParam("set", chain.setSpec);
             }
         }
 
         return builder.build();
     }
 
-    private void writeLastrun(OaiRunResult runResult) {
+    private String formatTimestamp(Date date) {
+        // SimpleDateFormat is not thread-safe and windows are harvested concurrently
+        return new SimpleDateFormat(FCREPO3_TIMESTAMP_PATTERN).format(date);
+    }
+
+    private void writeCheckpoint(String id, OaiRunResult runResult, boolean done) {
         try {
             XContentBuilder jb = jsonBuilder().startObject();
             jb.field("timestamp", runResult.getTimestamp());
+            if (done) {
+                jb.field("done", true);
+            }
             if (runResult.hasResumptionToken()) {
                 jb.field("resumption_token", runResult.getResumptionToken());
             }
@@ -227,7 +608,7 @@ public class OaiHarvester extends TerminateableRunnable {
                 jb.field("expiration_date", runResult.getExpirationDate());
             }
             jb.endObject();
-            client.prepareIndex(riverName.getName(), riverName.type(), "_last")
+            client.prepareIndex(riverName.getName(), riverName.type(), id)
                     .setSource(jb)
                     .execute().actionGet();
         } catch (IOException e) {
@@ -235,48 +616,103 @@ public class OaiHarvester extends TerminateableRunnable {
         }
     }
 
-    private OaiRunResult handleXmlResult(
-            InputStream content, Date timeOfRun)
-            throws
-            ParserConfigurationException,
-            IOException,
-            SAXException,
-            XPathExpressionException {
-
-        DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-        Document document = documentBuilderFactory.newDocumentBuilder().parse(content);
-
-        XPath xPath = XPathFactory.newInstance().newXPath();
-
-        XPathExpression xSelectIdentifier = xPath.compile("//header/identifier");
-        NodeList nodes = (NodeList) xSelectIdentifier.evaluate(document, XPathConstants.NODESET);
-        logger.debug("{} elements in OAI result", nodes.getLength());
-        for (int i = 0; i < nodes.getLength(); i++) {
-            Node n = nodes.item(i);
-            String localIdentifier = getLocalIdentifier(n.getTextContent());
-            boolean added = jobQueue.add(
-                    new ObjectIndexJob(IndexJob.Type.CREATE,
-                            localIdentifier));
-            if (added) logger.debug("Added {} to job queue", localIdentifier);
-        }
-
-        XPathExpression xSelectResumptionToken = xPath.compile("//resumptionToken");
-        String resumptionToken = (String) xSelectResumptionToken.evaluate(document, XPathConstants.STRING);
-
-        XPathExpression xSelectExpirationDate = xPath.compile("//resumptionToken/@expirationDate");
-        String s = (String) xSelectExpirationDate.evaluate(document, XPathConstants.STRING);
-        Date expirationDate;
-        if (s == null || s.isEmpty()) {
-            expirationDate = null;
-        } else {
-            expirationDate = DatatypeConverter.parseDateTime(s).getTime();
-        }
-
-        return new OaiRunResult(timeOfRun, expirationDate, resumptionToken);
+    /**
+     * Parses a ListIdentifiers response and enqueues its identifiers in batches while the
+     * response is still being read.
+     */
+    private OaiPage handleXmlResult(InputStream content, Date timeOfRun, final Chain chain)
+            throws XMLStreamException {
+        final List<OaiHeader> batch = new ArrayList<>(MULTI_GET_BATCH_SIZE);
+        final int[] count = new int[1];
+        OaiRunResult result = chain.parser.parse(content, timeOfRun, new ListIdentifiersParser.HeaderHandler() {
+            @Override
+            public void header(OaiHeader header) {
+                if (chain.isHarvestedElsewhere(header)) {
+                    return;
+                }
+                batch.add(header);
+                count[0]++;
+                if (batch.size() == MULTI_GET_BATCH_SIZE) {
+                    enqueue(batch);
+                    batch.clear();
+                }
+            }
+        });
+        enqueue(batch);
+        logger.debug("{} elements in OAI result", count[0]);
+        return new OaiPage(result);
     }
 
     private String getLocalIdentifier(String oaiId) {
         return oaiId.substring(oaiId.indexOf(':', "oai:".length()) + 1);
     }
 
+    private static class OaiPage {
+        static final OaiPage FAILED = new OaiPage(EMPTY_OAI_RUN_RESULT, true);
+        final OaiRunResult result;
+        final boolean failed;
+
+        OaiPage(OaiRunResult result) {
+            this(result, false);
+        }
+
+        private OaiPage(OaiRunResult result, boolean failed) {
+            this.result = result;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * A chain of ListIdentifiers requests and the document its progress is checkpointed in.
+     * Without a fixed start, the chain continues from the timestamp of its last run.
+     */
+    private static class Chain {
+        final String checkpointId;
+        final Date from;
+        final Date until;
+        final String setSpec;
+        final Set<String> skippedSets;
+        final ListIdentifiersParser parser = new ListIdentifiersParser();
+
+        Chain(String checkpointId, Date from, Date until) {
+            this(checkpointId, from, until, null, Collections.<String>emptySet());
+        }
+
+        Chain(String checkpointId, String setSpec) {
+            this(checkpointId, null, null, setSpec, Collections.<String>emptySet());
+        }
+
+        /**
+         * A chain over the whole repository that leaves out the items of the given top-level
+         * sets, since these are harvested by chains of their own.
+         */
+        Chain(String checkpointId, Set<String> skippedSets) {
+            this(checkpointId, null, null, null, skippedSets);
+        }
+
+        private Chain(String checkpointId, Date from, Date until, String setSpec, Set<String> skippedSets) {
+            this.checkpointId = checkpointId;
+            this.from = from;
+            this.until = until;
+            this.setSpec = setSpec;
+            this.skippedSets = skippedSets;
+        }
+
+        /**
+         * Deleted items are never left out, their headers may no longer name their sets.
+         */
+        boolean isHarvestedElsewhere(OaiHeader header) {
+            if (header.isDeleted()) {
+                return false;
+            }
+            for (String spec : header.getSetSpecs()) {
+                int colon = spec.indexOf(':');
+                if (skippedSets.contains(colon < 0 ? spec : spec.substring(0, colon))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
 }
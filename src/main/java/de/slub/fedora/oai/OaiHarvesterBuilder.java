@@ -17,15 +17,24 @@
 package de.slub.fedora.oai;
 
 import de.slub.index.IndexJob;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.river.RiverName;
 
+import javax.xml.bind.DatatypeConverter;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.TimeUnit;
@@ -34,6 +43,15 @@ public class OaiHarvesterBuilder {
 
     public static final String DEFAULT_URL = "http://localhost:8080/fedora/oai";
     public static final TimeValue DEFAULT_INTERVAL = new TimeValue(5, TimeUnit.MINUTES);
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 100000;
+    public static final TimeValue DEFAULT_CONNECT_TIMEOUT = TimeValue.timeValueSeconds(10);
+    public static final TimeValue DEFAULT_READ_TIMEOUT = TimeValue.timeValueSeconds(60);
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final TimeValue DEFAULT_RETRY_INTERVAL = TimeValue.timeValueSeconds(2);
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+    public static final TimeValue DEFAULT_BACKFILL_WINDOW = TimeValue.timeValueHours(30 * 24);
+    public static final int DEFAULT_BACKFILL_THREADS = 4;
+    public static final int DEFAULT_SET_THREADS = 4;
 
     private Client esClient;
     private RiverName riverName;
@@ -41,6 +59,18 @@ public class OaiHarvesterBuilder {
     private ESLogger logger;
     private URL url;
     private TimeValue interval;
+    private int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+    private TimeValue connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private TimeValue readTimeout = DEFAULT_READ_TIMEOUT;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private TimeValue retryInterval = DEFAULT_RETRY_INTERVAL;
+    private Date backfillFrom;
+    private TimeValue backfillWindow = DEFAULT_BACKFILL_WINDOW;
+    private int backfillThreads = DEFAULT_BACKFILL_THREADS;
+    private List<String> sets = new ArrayList<>();
+    private boolean discoverSets = false;
+    private int setThreads = DEFAULT_SET_THREADS;
+    private String indexName;
 
     public OaiHarvester build() throws MalformedURLException, URISyntaxException {
         return new OaiHarvester(
@@ -49,9 +79,41 @@ public class OaiHarvesterBuilder {
                 esClient,
                 riverName,
                 indexJobQueue,
-                logger);
+                logger,
+                maxQueueSize,
+                createHttpClient(),
+                backfillFrom,
+                backfillWindow,
+                backfillThreads,
+                sets,
+                discoverSets,
+                setThreads,
+                indexName);
     }
 
+    /**
+     * Creates the client used for all requests of the harvester. Connections are kept alive
+     * between pages and gzip or deflate compressed responses are decoded.
+     */
+    private CloseableHttpClient createHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        // every harvested chain has at most one request in flight
+        int maxConnections = Math.max(DEFAULT_MAX_CONNECTIONS, Math.max(backfillThreads, setThreads));
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout((int) connectTimeout.millis())
+                        .setConnectionRequestTimeout((int) connectTimeout.millis())
+                        .setSocketTimeout((int) readTimeout.millis())
+                        .build())
+                .setRetryHandler(new DefaultHttpRequestRetryHandler(maxRetries, false))
+                .setServiceUnavailableRetryStrategy(new ServerErrorRetryStrategy(maxRetries, retryInterval))
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
     public OaiHarvesterBuilder settings(Map<String, Object> oaiSettings)
             throws MalformedURLException {
 
@@ -61,6 +123,37 @@ public class OaiHarvesterBuilder {
         if (oaiSettings.containsKey("url")) {
             url = new URL(XContentMapValues.nodeStringValue(oaiSettings.get("url"), DEFAULT_URL));
         }
+        if (oaiSettings.containsKey("connect_timeout")) {
+            connectTimeout = TimeValue.parseTimeValue(String.valueOf(oaiSettings.get("connect_timeout")), DEFAULT_CONNECT_TIMEOUT);
+        }
+        if (oaiSettings.containsKey("read_timeout")) {
+            readTimeout = TimeValue.parseTimeValue(String.valueOf(oaiSettings.get("read_timeout")), DEFAULT_READ_TIMEOUT);
+        }
+        if (oaiSettings.containsKey("max_retries")) {
+            maxRetries = XContentMapValues.nodeIntegerValue(oaiSettings.get("max_retries"), DEFAULT_MAX_RETRIES);
+        }
+        if (oaiSettings.containsKey("retry_interval")) {
+            retryInterval = TimeValue.parseTimeValue(String.valueOf(oaiSettings.get("retry_interval")), DEFAULT_RETRY_INTERVAL);
+        }
+        if (oaiSettings.containsKey("backfill")) {
+            backfill((Map<String, Object>) oaiSettings.get("backfill"));
+        }
+        if (oaiSettings.containsKey("sets")) {
+            Object setSettings = oaiSettings.get("sets");
+            if ("discover".equals(setSettings)) {
+                discoverSets = true;
+            } else if (setSettings instanceof List) {
+                for (Object setSpec : (List) setSettings) {
+                    sets.add(String.valueOf(setSpec));
+                }
+            }
+        }
+        if (oaiSettings.containsKey("set_threads")) {
+            setThreads = XContentMapValues.nodeIntegerValue(oaiSettings.get("set_threads"), DEFAULT_SET_THREADS);
+        }
+        if (oaiSettings.containsKey("max_queue_size")) {
+            maxQueueSize = XContentMapValues.nodeIntegerValue(oaiSettings.get("max_queue_size"), DEFAULT_MAX_QUEUE_SIZE);
+        }
         return this;
     }
 
@@ -69,6 +162,15 @@ public class OaiHarvesterBuilder {
         return this;
     }
 
+    /**
+     * Objects that are indexed with a modification date not older than their OAI datestamp
+     * are not harvested again. Without an index name, all listed objects are harvested.
+     */
+    public OaiHarvesterBuilder indexName(String indexName) {
+        this.indexName = indexName;
+        return this;
+    }
+
     public OaiHarvesterBuilder riverName(RiverName riverName) {
         this.riverName = riverName;
         return this;
@@ -94,4 +196,52 @@ public class OaiHarvesterBuilder {
         return this;
     }
 
+    /**
+     * Without a last run, the harvester starts by harvesting all objects modified since the
+     * configured date in time windows, several windows at once.
+     */
+    public OaiHarvesterBuilder backfill(Map<String, Object> backfillSettings) {
+        if (backfillSettings.containsKey("from")) {
+            backfillFrom = DatatypeConverter.parseDateTime(
+                    XContentMapValues.nodeStringValue(backfillSettings.get("from"), null)).getTime();
+        }
+        if (backfillSettings.containsKey("window")) {
+            backfillWindow = TimeValue.parseTimeValue(String.valueOf(backfillSettings.get("window")), DEFAULT_BACKFILL_WINDOW);
+        }
+        if (backfillSettings.containsKey("threads")) {
+            backfillThreads = XContentMapValues.nodeIntegerValue(backfillSettings.get("threads"), DEFAULT_BACKFILL_THREADS);
+        }
+        return this;
+    }
+
+    /**
+     * Harvests the given sets instead of the whole repository, each in a chain of its own.
+     * Backfilling in time windows does not apply then.
+     */
+    public OaiHarvesterBuilder sets(List<String> sets) {
+        this.sets = sets;
+        return this;
+    }
+
+    /**
+     * Harvests all top-level sets listed by the repository, each in a chain of its own.
+     */
+    public OaiHarvesterBuilder discoverSets(boolean discoverSets) {
+        this.discoverSets = discoverSets;
+        return this;
+    }
+
+    public OaiHarvesterBuilder setThreads(int setThreads) {
+        this.setThreads = setThreads;
+        return this;
+    }
+
+    /**
+     * The harvester does not request further pages while the job queue holds this many jobs.
+     */
+    public OaiHarvesterBuilder maxQueueSize(int maxQueueSize) {
+        this.maxQueueSize = maxQueueSize;
+        return this;
+    }
+
 }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.oai;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Header of an item in an OAI-PMH list response.
+ */
+public class OaiHeader {
+    private final String identifier;
+    private final Date datestamp;
+    private final boolean deleted;
+    private final List<String> setSpecs;
+
+    public OaiHeader(String identifier, Date datestamp, boolean deleted) {
+        this(identifier, datestamp, deleted, Collections.<String>emptyList());
+    }
+
+    public OaiHeader(String identifier, Date datestamp, boolean deleted, List<String> setSpecs) {
+        this.identifier = identifier;
+        this.datestamp = datestamp;
+        this.deleted = deleted;
+        this.setSpecs = setSpecs;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @return The time of the last modification of the item, or null if unknown
+     */
+    public Date getDatestamp() {
+        return datestamp;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return The specs of the sets the item belongs to
+     */
+    public List<String> getSetSpecs() {
+        return setSpecs;
+    }
+
+}
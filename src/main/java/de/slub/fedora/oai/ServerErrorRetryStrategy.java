@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.oai;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.ServiceUnavailableRetryStrategy;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * Retries requests that failed with a 5xx status, since the OAI provider answers with
+ * server errors while it is busy or restarting.
+ */
+public class ServerErrorRetryStrategy implements ServiceUnavailableRetryStrategy {
+
+    private final int maxRetries;
+    private final TimeValue retryInterval;
+
+    public ServerErrorRetryStrategy(int maxRetries, TimeValue retryInterval) {
+        this.maxRetries = maxRetries;
+        this.retryInterval = retryInterval;
+    }
+
+    @Override
+    public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
+        return executionCount <= maxRetries
+                && response.getStatusLine().getStatusCode() >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    @Override
+    public long getRetryInterval() {
+        return retryInterval.millis();
+    }
+
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentGenerator;
+import org.xml.sax.SAXException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extraction stage for datastream content.
+ * <p/>
+ * Extraction tasks run on a bounded pool with a bounded queue. Submitting to a full queue blocks
+ * until there is room again and is counted as saturation. Waiting for a task fails once it has
+ * been running longer than the timeout; the task is then cancelled and its content closed, so
+ * that a parser blocked reading it fails. A parser that ignores both keeps its pool thread until
+ * it returns; such stuck threads are counted and replaced by additional pool threads, up to the
+ * size of the pool. Parsers that may never return should run in an {@link ExtractionWorkerPool}
+ * instead, which kills them. Without a pool, tasks run in the submitting thread.
+ * <p/>
+ * Extracted text is written to the document in chunks of a reusable per-thread buffer and is
+ * cut off after a maximum number of characters. With an {@link ExtractionCache}, text that has
+ * been extracted before is read from the cache without fetching the content. A
+ * {@link MimeTypeRouting} decides whether content is parsed, indexed as it is or skipped.
+ * Parsers run in this JVM, or in the forked JVMs of an {@link ExtractionWorkerPool}.
+ */
+public class ContentExtractor implements ToXContent {
+
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_QUEUE_SIZE = 100;
+    public static final TimeValue DEFAULT_TIMEOUT = TimeValue.timeValueMinutes(5);
+    public static final int DEFAULT_MAX_CHARS = 10 * 1024 * 1024;
+    public static final ContentExtractor INLINE = new ContentExtractor();
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final int queueSize;
+    private final TimeValue timeout;
+    private final int maxChars;
+    private final Parser parser = new AutoDetectParser();
+    private MimeTypeRouting routing = MimeTypeRouting.DEFAULT;
+    private ExtractionCache cache;
+    private ExtractionWorkerPool workers;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong saturated = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+    private final AtomicLong truncated = new AtomicLong();
+    private int stuck = 0;
+    private final ConcurrentMap<String, AtomicLong> routed = new ConcurrentHashMap<>();
+    private final ThreadLocal<char[]> chunkBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[CHUNK_SIZE];
+        }
+    };
+
+    /**
+     * @param maxChars Maximum number of characters extracted per datastream, or -1 for no limit
+     */
+    public ContentExtractor(int threads, int queueSize, TimeValue timeout, int maxChars, ThreadFactory threadFactory) {
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+        this.timeout = timeout;
+        this.maxChars = maxChars;
+        this.executor = new ThreadPoolExecutor(
+                this.threads, this.threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(this.queueSize),
+                threadFactory,
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Content extractor has been shut down");
+                        }
+                        saturated.incrementAndGet();
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException("Interrupted while waiting for the content extractor", e);
+                        }
+                    }
+                });
+    }
+
+    private ContentExtractor() {
+        this.executor = null;
+        this.threads = 0;
+        this.queueSize = 0;
+        this.timeout = TimeValue.timeValueMillis(-1);
+        this.maxChars = DEFAULT_MAX_CHARS;
+    }
+
+    /**
+     * Number of tasks that run at the same time, or 0 if tasks run in the submitting thread.
+     */
+    public int threads() {
+        return threads;
+    }
+
+    public ContentExtractor routing(MimeTypeRouting routing) {
+        this.routing = routing;
+        return this;
+    }
+
+    /**
+     * Runs parsers in the worker JVMs of the pool instead of this JVM. Raw content is still
+     * copied here.
+     */
+    public ContentExtractor workers(ExtractionWorkerPool workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    public ContentExtractor cache(ExtractionCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public <T> Extraction<T> submit(Callable<T> task) {
+        return submit(task, null);
+    }
+
+    /**
+     * @param content Closed if the task times out, may be null
+     */
+    public <T> Extraction<T> submit(Callable<T> task, Closeable content) {
+        Extraction<T> extraction = new Extraction<>(task, content);
+        if (executor == null) {
+            extraction.run();
+        } else {
+            executor.execute(extraction);
+        }
+        return extraction;
+    }
+
+    /**
+     * Waits for the result of a submitted task and rethrows the exception it failed with.
+     *
+     * @throws TimeoutException if the task has been running for longer than the timeout
+     */
+    public <T> T await(Extraction<T> extraction) throws Exception {
+        try {
+            if (timeout.millis() <= 0) {
+                return extraction.get();
+            }
+            for (; ; ) {
+                long started = extraction.started;
+                long wait = (started == 0) ? timeout.millis() : started + timeout.millis() - System.currentTimeMillis();
+                try {
+                    return extraction.get(Math.max(1, wait), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    started = extraction.started;
+                    if (started != 0 && System.currentTimeMillis() - started >= timeout.millis()) {
+                        extraction.cancel(true);
+                        timedOut.incrementAndGet();
+                        if (extraction.markStuck()) {
+                            resize(1);
+                        }
+                        throw new TimeoutException("Content extraction timed out after " + timeout);
+                    }
+                }
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Looks up how content of the MIME type is extracted and whether its text is cached. The
+     * content only has to be fetched if the returned source {@link Source#needsContent needs it}.
+     */
+    public Source source(String mimeType, String cacheKey) {
+        MimeTypeRouting.Route route = route(mimeType);
+        Source source = new Source(route, mimeType);
+        if (cache != null && route.action != MimeTypeRouting.Action.SKIP) {
+            // text depends on how it has been extracted
+            source.cacheKey = cacheKey + "#" + route.name;
+            source.cached = cache.get(source.cacheKey);
+        }
+        return source;
+    }
+
+    /**
+     * Writes the cached text of the source into an array field of the builder, or extracts and
+     * caches the text of its content. Skipped content is not written. Closes the source.
+     *
+     * @return true if the text has been cut off at the maximum number of characters
+     */
+    public boolean extractText(Source source, XContentBuilder builder, String field) throws Exception {
+        try {
+            if (source.route.action == MimeTypeRouting.Action.SKIP) {
+                return false;
+            }
+            if (source.cached != null) {
+                builder.startArray(field);
+                ChunkWriter writer = new ChunkWriter(builder.generator(), chunkBuffer.get(), null);
+                copyText(source.cached.text, writer, -1);
+                writer.close();
+                builder.endArray();
+                return source.cached.truncated;
+            }
+            if (source.cacheKey == null) {
+                return extractText(source.route, source.mimeType, source.content, builder, field, null);
+            }
+            ExtractionCache.EntryWriter copy = cache.put(source.cacheKey);
+            boolean truncated;
+            try {
+                truncated = extractText(source.route, source.mimeType, source.content, builder, field, copy);
+            } catch (Exception e) {
+                copy.abort();
+                throw e;
+            }
+            copy.commit(truncated);
+            return truncated;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Extracts the plain text of the given content into an array field of the builder, split
+     * into chunks at whitespace. Runs in the calling thread.
+     *
+     * @param mimeType MIME type of the content, may be null
+     * @return true if the text has been cut off at the maximum number of characters
+     */
+    public boolean extractText(String mimeType, InputStream content, XContentBuilder builder, String field) throws Exception {
+        MimeTypeRouting.Route route = route(mimeType);
+        if (route.action == MimeTypeRouting.Action.SKIP) {
+            return false;
+        }
+        return extractText(route, mimeType, content, builder, field, null);
+    }
+
+    /**
+     * Adds or removes pool threads that stand in for stuck ones.
+     */
+    private synchronized void resize(int stuckDelta) {
+        stuck += stuckDelta;
+        if (executor == null || executor.isShutdown()) {
+            return;
+        }
+        int size = threads + Math.min(stuck, threads);
+        if (size > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(size);
+            executor.setCorePoolSize(size);
+        } else {
+            executor.setCorePoolSize(size);
+            executor.setMaximumPoolSize(size);
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdown();
+        }
+    }
+
+    private MimeTypeRouting.Route route(String mimeType) {
+        MimeTypeRouting.Route route = routing.route(mimeType);
+        AtomicLong count = routed.get(route.name);
+        if (count == null) {
+            routed.putIfAbsent(route.name, new AtomicLong());
+            count = routed.get(route.name);
+        }
+        count.incrementAndGet();
+        return route;
+    }
+
+    private boolean extractText(MimeTypeRouting.Route route, String mimeType, InputStream content,
+                                XContentBuilder builder, String field, Writer copy) throws Exception {
+        builder.startArray(field);
+        ChunkWriter writer = new ChunkWriter(builder.generator(), chunkBuffer.get(), copy);
+        boolean limitReached;
+        if (route.action == MimeTypeRouting.Action.RAW) {
+            limitReached = copyText(new InputStreamReader(content, charset(mimeType)), writer, maxChars);
+        } else if (workers != null) {
+            String parserName = (route.action == MimeTypeRouting.Action.PARSE) ? route.name : MimeTypeRouting.AUTO;
+            limitReached = workers.extract(parserName, mimeType, content, writer, maxChars);
+        } else {
+            limitReached = parse(route, mimeType, content, writer);
+        }
+        if (limitReached) {
+            truncated.incrementAndGet();
+        }
+        writer.close();
+        builder.endArray();
+        return limitReached;
+    }
+
+    private boolean parse(MimeTypeRouting.Route route, String mimeType, InputStream content, Writer writer) throws Exception {
+        WriteOutContentHandler limit = new WriteOutContentHandler(writer, maxChars);
+        Metadata metadata = new Metadata();
+        if (mimeType != null) {
+            metadata.set(Metadata.CONTENT_TYPE, mimeType);
+        }
+        ParseContext context = new ParseContext();
+        // embedded documents are always auto-detected
+        context.set(Parser.class, parser);
+        try {
+            Parser routeParser = (route.parser == null) ? parser : route.parser;
+            routeParser.parse(content, new BodyContentHandler(limit), metadata, context);
+            return false;
+        } catch (SAXException e) {
+            if (!limit.isWriteLimitReached(e)) {
+                throw e;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Copies at most limit characters of the text, or all of them if limit is negative.
+     *
+     * @return true if the text has been cut off at the limit
+     */
+    private boolean copyText(Reader text, Writer writer, int limit) throws IOException {
+        char[] buffer = new char[8192];
+        long remaining = (limit < 0) ? Long.MAX_VALUE : limit;
+        int n;
+        while ((n = text.read(buffer)) != -1) {
+            if (n > remaining) {
+                writer.write(buffer, 0, (int) remaining);
+                return true;
+            }
+            writer.write(buffer, 0, n);
+            remaining -= n;
+        }
+        return false;
+    }
+
+    private static Charset charset(String mimeType) {
+        String name = MimeTypeRouting.charset(mimeType);
+        try {
+            if (name != null && Charset.isSupported(name)) {
+                return Charset.forName(name);
+            }
+        } catch (IllegalCharsetNameException e) {
+            // fall back to UTF-8
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private synchronized int stuckThreads() {
+        return stuck;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long count = completed.get() + failed.get();
+        builder.field("threads", threads)
+                .field("queue_size", queueSize)
+                .field("timeout", timeout.toString())
+                .field("max_chars", maxChars);
+        if (executor != null) {
+            builder.field("active", executor.getActiveCount())
+                    .field("queued", executor.getQueue().size());
+        }
+        builder.field("saturated", saturated.get())
+                .field("completed", completed.get())
+                .field("failed", failed.get())
+                .field("timed_out", timedOut.get())
+                .field("stuck", stuckThreads())
+                .field("truncated", truncated.get())
+                .field("extraction_time_avg_ms", (count == 0) ? 0 : totalMillis.get() / count);
+        builder.startObject("routed");
+        for (Map.Entry<String, AtomicLong> entry : routed.entrySet()) {
+            builder.field(entry.getKey(), entry.getValue().get());
+        }
+        builder.endObject();
+        if (cache != null) {
+            cache.toXContent(builder, params);
+        }
+        if (workers != null) {
+            workers.toXContent(builder, params);
+        }
+        return builder;
+    }
+
+    /**
+     * Content to extract text from, together with how it is extracted and its cached text.
+     */
+    public class Source implements Closeable {
+
+        private final MimeTypeRouting.Route route;
+        private final String mimeType;
+        private String cacheKey;
+        private ExtractionCache.Entry cached;
+        private InputStream content;
+
+        Source(MimeTypeRouting.Route route, String mimeType) {
+            this.route = route;
+            this.mimeType = mimeType;
+        }
+
+        public boolean needsContent() {
+            return route.action != MimeTypeRouting.Action.SKIP && cached == null;
+        }
+
+        public Source content(InputStream content) {
+            this.content = content;
+            return this;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (cached != null) {
+                    cached.text.close();
+                }
+            } finally {
+                if (content != null) {
+                    content.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A submitted extraction task that records when it started running.
+     */
+    public class Extraction<T> extends FutureTask<T> {
+
+        private final Closeable content;
+        private volatile long started = 0;
+        private boolean running = false;
+        private boolean stuck = false;
+
+        Extraction(Callable<T> task, Closeable content) {
+            super(task);
+            this.content = content;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                started = System.currentTimeMillis();
+                running = true;
+            }
+            try {
+                super.run();
+            } finally {
+                boolean wasStuck;
+                synchronized (this) {
+                    running = false;
+                    wasStuck = stuck;
+                }
+                if (wasStuck) {
+                    resize(-1);
+                }
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && content != null) {
+                try {
+                    content.close();
+                } catch (IOException e) {
+                    // the task fails reading it either way
+                }
+            }
+            return cancelled;
+        }
+
+        /**
+         * Marks the task as stuck if it is still running after it has been cancelled.
+         */
+        synchronized boolean markStuck() {
+            stuck = running;
+            return stuck;
+        }
+
+        @Override
+        protected void done() {
+            if (started != 0 && !isCancelled()) {
+                totalMillis.addAndGet(System.currentTimeMillis() - started);
+                try {
+                    get();
+                    completed.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes text as a sequence of JSON strings, each holding one buffer full of text that ends at
+     * the last whitespace in the buffer, so that chunk borders don't split words. The text is
+     * passed on unchanged to the copy writer, if there is one.
+     */
+    private static class ChunkWriter extends Writer {
+
+        private final XContentGenerator generator;
+        private final char[] buffer;
+        private final Writer copy;
+        private int length = 0;
+
+        ChunkWriter(XContentGenerator generator, char[] buffer, Writer copy) {
+            this.generator = generator;
+            this.buffer = buffer;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (copy != null) {
+                copy.write(cbuf, off, len);
+            }
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - length);
+                System.arraycopy(cbuf, off, buffer, length, n);
+                length += n;
+                off += n;
+                len -= n;
+                if (length == buffer.length) {
+                    writeChunk(chunkEnd());
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (length > 0) {
+                writeChunk(length);
+            }
+        }
+
+        private int chunkEnd() {
+            for (int i = length - 1; i > 0; i--) {
+                if (Character.isWhitespace(buffer[i])) {
+                    return i + 1;
+                }
+            }
+            return Character.isHighSurrogate(buffer[length - 1]) ? length - 1 : length;
+        }
+
+        private void writeChunk(int end) throws IOException {
+            generator.writeString(buffer, 0, end);
+            System.arraycopy(buffer, end, buffer, 0, length - end);
+            length -= end;
+        }
+    }
+
+}
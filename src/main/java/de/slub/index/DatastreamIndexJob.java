@@ -22,17 +22,17 @@ import com.yourmediashelf.fedora.client.request.GetDatastreamDissemination;
 import com.yourmediashelf.fedora.client.response.FedoraResponse;
 import com.yourmediashelf.fedora.client.response.GetDatastreamResponse;
 import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
-import org.apache.commons.io.IOUtils;
-import org.apache.tika.parser.ParsingReader;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
-import java.io.InputStream;
-import java.io.Reader;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -42,8 +42,15 @@ public class DatastreamIndexJob extends IndexJob {
 
     public static final String ES_TYPE_NAME = "datastream";
     public static final ArrayList<IndexJob> EMPTY_LIST = new ArrayList<>();
+    /**
+     * Fields of an indexed datastream document that tell whether its content is still current.
+     */
+    public static final String[] CONTENT_VERSION_FIELDS = {"VERSION_ID", "CHECKSUM", "CREATED_DATE"};
+    private Map<String, Object> indexedVersion;
+    private ContentExtractor extractor = ContentExtractor.INLINE;
+    private Future<ContentExtractor.Extraction<IndexDocument>> prefetched;
 
-    public DatastreamIndexJob(Type create, String pid, String dsid, int delay, TimeUnit unit) {
+    public DatastreamIndexJob(Type create, String pid, String dsid, long delay, TimeUnit unit) {
         super(create, pid, dsid, delay, unit);
     }
 
@@ -56,6 +63,51 @@ public class DatastreamIndexJob extends IndexJob {
         return ES_TYPE_NAME;
     }
 
+    /**
+     * Sets the content version fields of the currently indexed document. If they match the
+     * datastream profile, the document is updated without fetching and extracting the content.
+     */
+    public DatastreamIndexJob indexedVersion(Map<String, Object> indexedVersion) {
+        this.indexedVersion = indexedVersion;
+        return this;
+    }
+
+    public DatastreamIndexJob extractor(ContentExtractor extractor) {
+        this.extractor = extractor;
+        return this;
+    }
+
+    /**
+     * Starts fetching the datastream on the executor of the job and hands its content to the
+     * extraction stage, so that the calling processor can go on with the other jobs of its batch.
+     * Only the extraction runs on the extraction stage.
+     */
+    public void prefetch(final FedoraClient fedoraClient) {
+        if (prefetched == null && type() != Type.DELETE) {
+            prefetched = submit(new Callable<ContentExtractor.Extraction<IndexDocument>>() {
+                @Override
+                public ContentExtractor.Extraction<IndexDocument> call() throws Exception {
+                    final DatastreamProfile profile = getDatastreamProfile(fedoraClient);
+                    final boolean contentUnchanged = isContentUnchanged(profile);
+                    final ContentExtractor.Source content = contentUnchanged ? null : openContent(fedoraClient, profile);
+                    try {
+                        return extractor.submit(new Callable<IndexDocument>() {
+                            @Override
+                            public IndexDocument call() throws Exception {
+                                return new IndexDocument(buildIndexObject(profile, content), contentUnchanged);
+                            }
+                        }, content);
+                    } catch (RuntimeException e) {
+                        if (content != null) {
+                            content.close();
+                        }
+                        throw e;
+                    }
+                }
+            });
+        }
+    }
+
     @Override
     protected java.util.List<IndexJob> executeDelete(FedoraClient fedoraClient, Client client, ESLogger log) {
         deleteErrorDocuments(client);
@@ -72,7 +124,7 @@ public class DatastreamIndexJob extends IndexJob {
     protected java.util.List<IndexJob> executeCreate(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception {
         IndexResponse response = client.prepareIndex(index(), indexType(), esid())
                 .setParent(pid())
-                .setSource(buildIndexObject(fedoraClient))
+                .setSource(buildIndexObject(fedoraClient, getDatastreamProfile(fedoraClient)))
                 .execute().actionGet();
         if (response.isCreated()) {
             deleteErrorDocuments(client);
@@ -80,10 +132,69 @@ public class DatastreamIndexJob extends IndexJob {
         return EMPTY_LIST;
     }
 
-    private XContentBuilder buildIndexObject(FedoraClient fedoraClient) throws Exception {
+    @Override
+    public boolean isBulkable() {
+        return true;
+    }
+
+    @Override
+    protected java.util.List<IndexJob> bulkDelete(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) {
+        bulkRequest.add(client.prepareDelete(index(), IndexJobProcessor.ES_ERROR_TYPE_NAME, esid()));
+        return EMPTY_LIST;
+    }
+
+    @Override
+    protected java.util.List<IndexJob> bulkUpdate(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+        return bulkCreate(fedoraClient, client, bulkRequest, log);
+    }
+
+    @Override
+    protected java.util.List<IndexJob> bulkCreate(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+        IndexDocument document = indexDocument(fedoraClient);
+        if (document.contentUnchanged) {
+            log.debug("Content of {} is unchanged, updating metadata only", esid());
+            bulkRequest.add(client.prepareUpdate(index(), indexType(), esid())
+                    .setParent(pid())
+                    .setDoc(document.source));
+        } else {
+            bulkRequest.add(client.prepareIndex(index(), indexType(), esid())
+                    .setParent(pid())
+                    .setSource(document.source));
+        }
+        bulkRequest.add(client.prepareDelete(index(), IndexJobProcessor.ES_ERROR_TYPE_NAME, esid()));
+        return EMPTY_LIST;
+    }
+
+    private boolean isContentUnchanged(DatastreamProfile profile) {
+        return indexedVersion != null
+                && String.valueOf(profile.getDsVersionID()).equals(String.valueOf(indexedVersion.get("VERSION_ID")))
+                && String.valueOf(profile.getDsChecksum()).equals(String.valueOf(indexedVersion.get("CHECKSUM")))
+                && String.valueOf(profile.getDsCreateDate()).equals(String.valueOf(indexedVersion.get("CREATED_DATE")));
+    }
+
+    private DatastreamProfile getDatastreamProfile(FedoraClient fedoraClient) throws Exception {
         GetDatastreamResponse response = (GetDatastreamResponse)
                 fedoraClient.execute(new GetDatastream(pid(), dsid()));
-        DatastreamProfile profile = response.getDatastreamProfile();
+        return response.getDatastreamProfile();
+    }
+
+    private IndexDocument indexDocument(FedoraClient fedoraClient) throws Exception {
+        prefetch(fedoraClient);
+        try {
+            return extractor.await(await(prefetched));
+        } finally {
+            prefetched = null;
+        }
+    }
+
+    private XContentBuilder buildIndexObject(FedoraClient fedoraClient, DatastreamProfile profile) throws Exception {
+        return buildIndexObject(profile, openContent(fedoraClient, profile));
+    }
+
+    /**
+     * @param content Content of the datastream, or null to leave out the CONTENT object
+     */
+    private XContentBuilder buildIndexObject(DatastreamProfile profile, ContentExtractor.Source content) throws Exception {
         XContentBuilder jb = jsonBuilder().startObject()
                 .field("PID", profile.getPid())
                 .field("DSID", profile.getDsID())
@@ -97,12 +208,35 @@ public class DatastreamIndexJob extends IndexJob {
                 .field("VERSIONABLE", (profile.getDsVersionable().equals("true")))
                 .field("CHECKSUM_TYPE", profile.getDsChecksumType())
                 .field("CHECKSUM", profile.getDsChecksum());
-        indexDatastreamContent(fedoraClient, profile, jb);
+        if (content != null) {
+            indexDatastreamContent(profile, content, jb);
+        }
         jb.endObject();
         return jb;
     }
 
-    private void indexDatastreamContent(FedoraClient fedoraClient, DatastreamProfile profile, XContentBuilder jb) throws Exception {
+    /**
+     * Looks up how the datastream content is extracted and opens it if it has to be fetched.
+     */
+    private ContentExtractor.Source openContent(FedoraClient fedoraClient, DatastreamProfile profile) throws Exception {
+        ContentExtractor.Source source = extractor.source(profile.getDsMIME(), ExtractionCache.key(
+                profile.getDsChecksumType(), profile.getDsChecksum(),
+                profile.getPid(), profile.getDsID(), profile.getDsVersionID()));
+        if (source.needsContent()) {
+            FedoraResponse dsResponse = fedoraClient.execute(new GetDatastreamDissemination(
+                    profile.getPid(), profile.getDsID()
+            ));
+            if (dsResponse.getStatus() != 200) {
+                dsResponse.close();
+                source.close();
+                throw new Exception("Couldn't get datastream content for indexing. Fedora server status: " + dsResponse.getStatus());
+            }
+            source.content(dsResponse.getEntityInputStream());
+        }
+        return source;
+    }
+
+    private void indexDatastreamContent(DatastreamProfile profile, ContentExtractor.Source content, XContentBuilder jb) throws Exception {
         jb.startObject("CONTENT");
         URI contentURI = new URI(
                 String.format("objects/%s/datastreams/%s/content",
@@ -110,22 +244,7 @@ public class DatastreamIndexJob extends IndexJob {
                         profile.getDsID())
         );
         jb.field("_uri", contentURI.toASCIIString());
-        FedoraResponse dsResponse = fedoraClient.execute(new GetDatastreamDissemination(
-                profile.getPid(), profile.getDsID()
-        ));
-
-        if (dsResponse.getStatus() != 200) {
-            throw new Exception("Couldn't get datastream content for indexing. Fedora server status: " + dsResponse.getStatus());
-        }
-
-        InputStream contentInputStream = dsResponse.getEntityInputStream();
-        try {
-            Reader reader = new ParsingReader(contentInputStream);
-            jb.field("_content", IOUtils.toString(reader));
-        } finally {
-            contentInputStream.close();
-        }
-
+        jb.field("_truncated", extractor.extractText(content, jb, "_content"));
         jb.endObject();
     }
 
@@ -136,4 +255,14 @@ public class DatastreamIndexJob extends IndexJob {
                 .execute().actionGet();
     }
 
+    private static class IndexDocument {
+        final XContentBuilder source;
+        final boolean contentUnchanged;
+
+        IndexDocument(XContentBuilder source, boolean contentUnchanged) {
+            this.source = source;
+            this.contentUnchanged = contentUnchanged;
+        }
+    }
+
 }
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * On-disk cache of extracted datastream text.
+ * <p/>
+ * Entries are keyed by the checksum of the datastream content, so that unchanged datastreams and
+ * the same file attached to several objects are extracted only once. Datastreams without a
+ * checksum are keyed by their version. Every entry is a file holding a truncation flag and the
+ * UTF-8 encoded text. Once the files exceed the maximum size, the least recently used entries
+ * are evicted.
+ */
+public class ExtractionCache implements ToXContent {
+
+    public static final ByteSizeValue DEFAULT_MAX_SIZE = new ByteSizeValue(1, ByteSizeUnit.GB);
+    private static final String FILE_SUFFIX = ".txt";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final ByteSizeValue maxSize;
+    private final ESLogger log;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public ExtractionCache(File directory, ByteSizeValue maxSize, ESLogger logger) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.log = logger;
+    }
+
+    /**
+     * Returns the cache key of a datastream version. Fedora reports disabled checksums with
+     * type {@code DISABLED} and checksum {@code none}.
+     */
+    public static String key(String checksumType, String checksum, String pid, String dsid, String versionId) {
+        if (checksumType == null || checksumType.equals("DISABLED")
+                || checksum == null || checksum.isEmpty() || checksum.equals("none")) {
+            return "version:" + pid + "/" + dsid + "/" + versionId;
+        }
+        return "checksum:" + checksumType + ":" + checksum;
+    }
+
+    /**
+     * Opens the cache directory and indexes the entries in it, least recently modified first.
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create extraction cache directory " + directory.getAbsolutePath());
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                delete(f);
+            } else if (name.endsWith(FILE_SUFFIX)) {
+                String id = name.substring(0, name.length() - FILE_SUFFIX.length());
+                entries.put(id, f.length());
+                size += f.length();
+            }
+        }
+        evict();
+        log.info("Opened extraction cache {} with {} entries", directory.getAbsolutePath(), entries.size());
+    }
+
+    /**
+     * Returns the cached text for the key, or null if there is none.
+     */
+    public synchronized Entry get(String key) {
+        String id = id(key);
+        if (entries.get(id) != null) {
+            try {
+                InputStream in = new BufferedInputStream(new FileInputStream(file(id)));
+                int truncated = in.read();
+                if (truncated >= 0) {
+                    hits++;
+                    return new Entry(truncated == 1, new InputStreamReader(in, StandardCharsets.UTF_8));
+                }
+                in.close();
+            } catch (IOException e) {
+                log.warn("Cannot read extraction cache entry {}: {}", key, e.getMessage());
+            }
+            remove(id);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Starts writing a new entry for the key. The entry becomes visible once it is committed.
+     */
+    public EntryWriter put(String key) throws IOException {
+        return new EntryWriter(id(key));
+    }
+
+    @Override
+    public synchronized XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        long lookups = hits + misses;
+        return builder.startObject("cache")
+                .field("max_size", maxSize.toString())
+                .field("size", new ByteSizeValue(size).toString())
+                .field("size_in_bytes", size)
+                .field("entries", entries.size())
+                .field("hits", hits)
+                .field("misses", misses)
+                .field("hit_ratio", (lookups == 0) ? 0.0 : (double) hits / lookups)
+                .field("evictions", evictions)
+                .endObject();
+    }
+
+    private synchronized void committed(String id, File temp) throws IOException {
+        File target = file(id);
+        Long previous = entries.remove(id);
+        if (previous != null) {
+            size -= previous;
+        }
+        if (!temp.renameTo(target)) {
+            delete(temp);
+            throw new IOException("Cannot move extraction cache entry to " + target.getAbsolutePath());
+        }
+        entries.put(id, target.length());
+        size += target.length();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (size > maxSize.bytes() && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            size -= eldest.getValue();
+            evictions++;
+            delete(file(eldest.getKey()));
+        }
+    }
+
+    private void remove(String id) {
+        Long length = entries.remove(id);
+        if (length != null) {
+            size -= length;
+            delete(file(id));
+        }
+    }
+
+    private void delete(File f) {
+        if (f.exists() && !f.delete()) {
+            log.warn("Cannot delete extraction cache file {}", f.getAbsolutePath());
+        }
+    }
+
+    private File file(String id) {
+        return new File(directory, id + FILE_SUFFIX);
+    }
+
+    private static String id(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX[digest[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Cached text of a datastream. The reader has to be closed by the caller.
+     */
+    public static class Entry {
+        public final boolean truncated;
+        public final Reader text;
+
+        Entry(boolean truncated, Reader text) {
+            this.truncated = truncated;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Writes the text of a new entry to a temporary file.
+     */
+    public class EntryWriter extends Writer {
+
+        private final String id;
+        private final File temp;
+        private final OutputStream out;
+        private final Writer text;
+
+        EntryWriter(String id) throws IOException {
+            this.id = id;
+            this.temp = File.createTempFile(id, TEMP_SUFFIX, directory);
+            this.out = new BufferedOutputStream(new FileOutputStream(temp));
+            out.write(0);
+            this.text = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            text.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            text.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            text.close();
+        }
+
+        /**
+         * Closes the temporary file and adds it to the cache. An entry that cannot be written
+         * is dropped.
+         */
+        public void commit(boolean truncated) {
+            try {
+                text.close();
+                if (truncated) {
+                    try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                        raf.write(1);
+                    }
+                }
+                committed(id, temp);
+            } catch (IOException e) {
+                log.warn("Cannot write extraction cache entry: {}", e.getMessage());
+                delete(temp);
+            }
+        }
+
+        /**
+         * Closes and deletes the temporary file.
+         */
+        public void abort() {
+            try {
+                text.close();
+            } catch (IOException e) {
+                log.debug("Error closing extraction cache file {}: {}", temp.getAbsolutePath(), e.getMessage());
+            }
+            delete(temp);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Main class of a forked extraction worker JVM, see {@link ExtractionWorkerPool}.
+ * <p/>
+ * Reads requests from standard input and writes the extracted text to standard output, which is
+ * why anything parsers print there goes to standard error instead. Once the parsers are loaded,
+ * the worker writes a ready frame. A request is the parser class
+ * name (or {@code auto}), the MIME type, the maximum number of characters and the content as
+ * length-prefixed frames ending with an empty frame. The content is spooled to a temporary file
+ * before parsing, so the river is never blocked writing content while the worker writes text.
+ * The response is a sequence of text frames followed by an end frame with the truncation flag,
+ * or an error frame. The worker exits at the end of its input or when it runs out of memory.
+ */
+public class ExtractionWorker {
+
+    static final byte FRAME_READY = 'R';
+    static final byte FRAME_TEXT = 'T';
+    static final byte FRAME_END = 'E';
+    static final byte FRAME_ERROR = 'X';
+
+    private final Parser autoDetectParser = new AutoDetectParser();
+    private final Map<String, Parser> parsers = new HashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        new ExtractionWorker().serve(in, out);
+    }
+
+    void serve(DataInputStream in, DataOutputStream out) throws IOException {
+        out.writeByte(FRAME_READY);
+        out.flush();
+        for (; ; ) {
+            String parserName;
+            try {
+                parserName = in.readUTF();
+            } catch (EOFException e) {
+                return;
+            }
+            String mimeType = in.readUTF();
+            int maxChars = in.readInt();
+            File spool = File.createTempFile("fedora-river-extraction-", ".tmp");
+            try {
+                receive(in, spool);
+                try {
+                    boolean truncated = parse(parserName, mimeType, spool, new FrameWriter(out), maxChars);
+                    out.writeByte(FRAME_END);
+                    out.writeBoolean(truncated);
+                } catch (OutOfMemoryError e) {
+                    error(out, e);
+                    out.flush();
+                    System.exit(1);
+                } catch (Exception | LinkageError e) {
+                    error(out, e);
+                }
+                out.flush();
+            } finally {
+                if (!spool.delete()) {
+                    spool.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    private void receive(DataInputStream in, File spool) throws IOException {
+        byte[] buffer = new byte[8192];
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spool))) {
+            int length;
+            while ((length = in.readInt()) > 0) {
+                while (length > 0) {
+                    int n = Math.min(length, buffer.length);
+                    in.readFully(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    length -= n;
+                }
+            }
+        }
+    }
+
+    private boolean parse(String parserName, String mimeType, File spool, Writer writer, int maxChars) throws Exception {
+        WriteOutContentHandler limit = new WriteOutContentHandler(writer, maxChars);
+        Metadata metadata = new Metadata();
+        if (!mimeType.isEmpty()) {
+            metadata.set(Metadata.CONTENT_TYPE, mimeType);
+        }
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, autoDetectParser);
+        try (InputStream content = TikaInputStream.get(spool)) {
+            parser(parserName).parse(content, new BodyContentHandler(limit), metadata, context);
+            return false;
+        } catch (SAXException e) {
+            if (!limit.isWriteLimitReached(e)) {
+                throw e;
+            }
+            return true;
+        }
+    }
+
+    private Parser parser(String name) throws Exception {
+        if (name.equals(MimeTypeRouting.AUTO)) {
+            return autoDetectParser;
+        }
+        Parser parser = parsers.get(name);
+        if (parser == null) {
+            parser = Class.forName(name).asSubclass(Parser.class).newInstance();
+            parsers.put(name, parser);
+        }
+        return parser;
+    }
+
+    private void error(DataOutputStream out, Throwable e) throws IOException {
+        out.writeByte(FRAME_ERROR);
+        out.writeUTF(String.valueOf(e));
+    }
+
+    /**
+     * Writes text as frames of UTF-16 chars, so surrogate pairs split by the parser stay intact.
+     */
+    private static class FrameWriter extends Writer {
+
+        private final DataOutputStream out;
+        private ByteBuffer bytes = ByteBuffer.allocate(0);
+
+        FrameWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (bytes.capacity() < 2 * len) {
+                bytes = ByteBuffer.allocate(Math.max(2 * len, 2 * bytes.capacity()));
+            }
+            bytes.clear();
+            bytes.asCharBuffer().put(cbuf, off, len);
+            out.writeByte(FRAME_TEXT);
+            out.writeInt(len);
+            out.write(bytes.array(), 0, 2 * len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
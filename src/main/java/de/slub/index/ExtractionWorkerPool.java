@@ -0,0 +1,321 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of forked JVMs that run Tika parsers outside of the Elasticsearch node.
+ * <p/>
+ * Every worker is an {@link ExtractionWorker} process connected through its standard input and
+ * output. The heap limit of the worker JVMs bounds the memory a parser can take, a watchdog
+ * kills workers that take longer than the timeout to parse a document, and workers are replaced after
+ * a number of documents to get rid of whatever parsers leak. Workers are started on demand.
+ */
+public class ExtractionWorkerPool implements ToXContent {
+
+    public static final int DEFAULT_SIZE = 2;
+    public static final ByteSizeValue DEFAULT_HEAP = new ByteSizeValue(512, ByteSizeUnit.MB);
+    public static final int DEFAULT_MAX_DOCUMENTS = 1000;
+    private static final int CONTENT_FRAME_SIZE = 64 * 1024;
+
+    private final int size;
+    private final List<String> command;
+    private final int maxDocuments;
+    private final TimeValue timeout;
+    private final Semaphore permits;
+    private final BlockingDeque<Worker> idle = new LinkedBlockingDeque<>();
+    private final ScheduledThreadPoolExecutor watchdog;
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong recycled = new AtomicLong();
+    private final AtomicLong crashed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param command      Command line that starts an {@link ExtractionWorker}, see {@link #command}
+     * @param maxDocuments Number of documents after which a worker is replaced
+     */
+    public ExtractionWorkerPool(int size, List<String> command, int maxDocuments, TimeValue timeout, ThreadFactory threadFactory) {
+        this.size = Math.max(1, size);
+        this.command = new ArrayList<>(command);
+        this.maxDocuments = Math.max(1, maxDocuments);
+        this.timeout = timeout;
+        this.permits = new Semaphore(this.size);
+        this.watchdog = new ScheduledThreadPoolExecutor(1, threadFactory);
+        this.watchdog.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Returns the command line that starts a worker JVM with the given heap limit.
+     *
+     * @param java      Path of the java executable, or null for the one running this JVM
+     * @param classpath Classpath of the worker, or null for the classpath this class has been loaded from
+     */
+    public static List<String> command(String java, ByteSizeValue heap, List<String> jvmOptions, String classpath) {
+        List<String> command = new ArrayList<>();
+        command.add((java == null)
+                ? System.getProperty("java.home") + File.separator + "bin" + File.separator + "java"
+                : java);
+        command.add("-Xmx" + Math.max(1, heap.mb()) + "m");
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add((classpath == null) ? classpath(ExtractionWorkerPool.class.getClassLoader()) : classpath);
+        command.add(ExtractionWorker.class.getName());
+        return command;
+    }
+
+    /**
+     * Extracts the text of the content in a worker and writes it to the writer.
+     *
+     * @param parserName Class name of the Tika parser, or {@code auto} for auto-detection
+     * @param mimeType   MIME type of the content, may be null
+     * @return true if the text has been cut off at the maximum number of characters
+     * @throws TimeoutException if the worker took longer than the timeout and has been killed
+     */
+    public boolean extract(String parserName, String mimeType, InputStream content, Writer writer, int maxChars) throws Exception {
+        permits.acquire();
+        Worker worker = null;
+        try {
+            worker = borrow();
+            boolean truncated = worker.extract(parserName, mimeType, content, writer, maxChars);
+            giveBack(worker);
+            worker = null;
+            return truncated;
+        } catch (ParseException e) {
+            // the parser failed, but the worker is fine
+            giveBack(worker);
+            worker = null;
+            throw new Exception("Content extraction failed in worker: " + e.getMessage());
+        } catch (IOException e) {
+            if (worker != null && worker.timedOut) {
+                timedOut.incrementAndGet();
+                throw new TimeoutException("Extraction worker timed out after " + timeout);
+            }
+            crashed.incrementAndGet();
+            throw new IOException("Extraction worker failed: " + e.getMessage(), e);
+        } finally {
+            if (worker != null) {
+                worker.destroy();
+            }
+            permits.release();
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        watchdog.shutdownNow();
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            worker.destroy();
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        return builder.startObject("workers")
+                .field("size", size)
+                .field("busy", size - permits.availablePermits())
+                .field("idle", idle.size())
+                .field("max_documents", maxDocuments)
+                .field("timeout", timeout.toString())
+                .field("started", started.get())
+                .field("recycled", recycled.get())
+                .field("crashed", crashed.get())
+                .field("timed_out", timedOut.get())
+                .endObject();
+    }
+
+    private Worker borrow() throws IOException {
+        if (shutdown) {
+            throw new IOException("Extraction worker pool has been shut down");
+        }
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            if (worker.isAlive()) {
+                return worker;
+            }
+            crashed.incrementAndGet();
+            worker.destroy();
+        }
+        worker = new Worker(new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start());
+        started.incrementAndGet();
+        try {
+            worker.awaitReady();
+        } catch (IOException e) {
+            worker.destroy();
+            throw e;
+        }
+        return worker;
+    }
+
+    private void giveBack(Worker worker) {
+        if (++worker.documents >= maxDocuments) {
+            recycled.incrementAndGet();
+            worker.destroy();
+        } else {
+            idle.offerFirst(worker);
+        }
+    }
+
+    static String classpath(ClassLoader classLoader) {
+        Set<String> entries = new LinkedHashSet<>();
+        for (ClassLoader loader = classLoader; loader != null; loader = loader.getParent()) {
+            if (loader instanceof URLClassLoader) {
+                for (URL url : ((URLClassLoader) loader).getURLs()) {
+                    if ("file".equals(url.getProtocol())) {
+                        try {
+                            entries.add(new File(url.toURI()).getPath());
+                        } catch (URISyntaxException e) {
+                            entries.add(url.getPath());
+                        }
+                    }
+                }
+            }
+        }
+        entries.addAll(Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator)));
+        StringBuilder sb = new StringBuilder();
+        for (String entry : entries) {
+            if (sb.length() > 0) sb.append(File.pathSeparator);
+            sb.append(entry);
+        }
+        return sb.toString();
+    }
+
+    private class Worker {
+        final Process process;
+        final DataOutputStream out;
+        final DataInputStream in;
+        volatile boolean timedOut = false;
+        int documents = 0;
+
+        Worker(Process process) {
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        boolean extract(String parserName, String mimeType, InputStream content, Writer writer, int maxChars)
+                throws IOException, ParseException {
+            // the worker spools all content before parsing, so the timeout starts once it has been sent
+            send(parserName, mimeType, content, maxChars);
+            ScheduledFuture<?> kill = (timeout.millis() > 0)
+                    ? watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut = true;
+                    process.destroy();
+                }
+            }, timeout.millis(), TimeUnit.MILLISECONDS)
+                    : null;
+            try {
+                return receive(writer);
+            } finally {
+                if (kill != null) {
+                    kill.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Waits until the worker JVM has started and loaded its parsers.
+         */
+        void awaitReady() throws IOException {
+            byte frame = in.readByte();
+            if (frame != ExtractionWorker.FRAME_READY) {
+                throw new IOException("Unexpected frame from extraction worker: " + frame);
+            }
+        }
+
+        private void send(String parserName, String mimeType, InputStream content, int maxChars) throws IOException {
+            out.writeUTF(parserName);
+            out.writeUTF((mimeType == null) ? "" : mimeType);
+            out.writeInt(maxChars);
+            byte[] buffer = new byte[CONTENT_FRAME_SIZE];
+            int n;
+            while ((n = content.read(buffer)) != -1) {
+                if (n > 0) {
+                    out.writeInt(n);
+                    out.write(buffer, 0, n);
+                }
+            }
+            out.writeInt(0);
+            out.flush();
+        }
+
+        private boolean receive(Writer writer) throws IOException, ParseException {
+            byte[] bytes = new byte[8192];
+            char[] chars = new char[4096];
+            for (; ; ) {
+                byte frame = in.readByte();
+                switch (frame) {
+                    case ExtractionWorker.FRAME_TEXT:
+                        int length = in.readInt();
+                        if (length > chars.length) {
+                            chars = new char[Math.max(length, 2 * chars.length)];
+                            bytes = new byte[2 * chars.length];
+                        }
+                        in.readFully(bytes, 0, 2 * length);
+                        ByteBuffer.wrap(bytes, 0, 2 * length).asCharBuffer().get(chars, 0, length);
+                        writer.write(chars, 0, length);
+                        break;
+                    case ExtractionWorker.FRAME_END:
+                        return in.readBoolean();
+                    case ExtractionWorker.FRAME_ERROR:
+                        throw new ParseException(in.readUTF());
+                    default:
+                        throw new IOException("Unexpected frame from extraction worker: " + frame);
+                }
+            }
+        }
+
+        boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+    }
+
+    private static class ParseException extends Exception {
+        ParseException(String message) {
+            super(message);
+        }
+    }
+
+}
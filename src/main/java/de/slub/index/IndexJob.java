@@ -18,11 +18,12 @@ package de.slub.index;
 
 import com.yourmediashelf.fedora.client.FedoraClient;
 import de.slub.util.concurrent.DelayedQueueElement;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 public abstract class IndexJob extends DelayedQueueElement {
 
@@ -34,6 +35,9 @@ public abstract class IndexJob extends DelayedQueueElement {
     private String indexType;
     private String sdefPid;
     private String method;
+    private Lane lane = Lane.REALTIME;
+    private long maxDeadline = Long.MAX_VALUE;
+    private ExecutorService executor;
 
     public IndexJob(Type type, String pid) {
         this(type, pid, "");
@@ -73,6 +77,10 @@ public abstract class IndexJob extends DelayedQueueElement {
         return this;
     }
 
+    public Type type() {
+        return type;
+    }
+
     public String pid() {
         return pid;
     }
@@ -114,6 +122,32 @@ public abstract class IndexJob extends DelayedQueueElement {
         }
     }
 
+    /**
+     * Executes the job by adding its index operations to the given bulk request instead
+     * of sending them to the cluster immediately. Only call for jobs that are bulkable.
+     */
+    public List<IndexJob> execute(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log)
+            throws Exception {
+        switch (type) {
+            case CREATE:
+                return bulkCreate(fedoraClient, client, bulkRequest, log);
+            case UPDATE:
+                return bulkUpdate(fedoraClient, client, bulkRequest, log);
+            case DELETE:
+                return bulkDelete(fedoraClient, client, bulkRequest, log);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Jobs that cannot express their work as bulk request items (e.g. delete-by-query)
+     * are executed on their own, after all pending bulk items have been sent.
+     */
+    public boolean isBulkable() {
+        return false;
+    }
+
     public String esid() {
         if (dsid().isEmpty()) {
             return pid();
@@ -128,6 +162,18 @@ public abstract class IndexJob extends DelayedQueueElement {
 
     protected abstract List<IndexJob> executeCreate(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception;
 
+    protected List<IndexJob> bulkDelete(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+        return executeDelete(fedoraClient, client, log);
+    }
+
+    protected List<IndexJob> bulkUpdate(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+        return executeUpdate(fedoraClient, client, log);
+    }
+
+    protected List<IndexJob> bulkCreate(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+        return executeCreate(fedoraClient, client, log);
+    }
+
     public IndexJob sdefPid(String sdefPid) {
         this.sdefPid = sdefPid;
         return this;
@@ -146,10 +192,73 @@ public abstract class IndexJob extends DelayedQueueElement {
         return method;
     }
 
+    public IndexJob lane(Lane lane) {
+        this.lane = lane;
+        return this;
+    }
+
+    public Lane lane() {
+        return lane;
+    }
+
+    /**
+     * Sets the latest time (epoch millis) the job may become due. Jobs that replace this job
+     * in the queue are not postponed beyond it.
+     */
+    public IndexJob maxDeadline(long maxDeadline) {
+        this.maxDeadline = maxDeadline;
+        return this;
+    }
+
+    public long maxDeadline() {
+        return maxDeadline;
+    }
+
+    public IndexJob executor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Runs the task on the executor of the job, or in the calling thread if there is none.
+     */
+    protected <V> Future<V> submit(Callable<V> task) {
+        if (executor == null) {
+            FutureTask<V> future = new FutureTask<>(task);
+            future.run();
+            return future;
+        }
+        return executor.submit(task);
+    }
+
+    /**
+     * Waits for the result of a submitted task and rethrows the exception it failed with.
+     */
+    protected static <V> V await(Future<V> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw ex;
+        }
+    }
+
     public enum Type {
         CREATE,
         UPDATE,
         DELETE
     }
 
+    /**
+     * Scheduling class of a job. Jobs triggered by live repository events are processed with
+     * priority over jobs of bulk harvests.
+     */
+    public enum Lane {
+        REALTIME,
+        BACKFILL
+    }
+
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import de.slub.util.concurrent.Coalescer;
+
+import static de.slub.index.IndexJob.Type.DELETE;
+
+/**
+ * Merges queued index jobs targeting the same Elasticsearch document:
+ * <ul>
+ * <li>A job of the same type replaces the queued one, like an equal job does.</li>
+ * <li>DELETE supersedes a queued CREATE or UPDATE.</li>
+ * <li>UPDATE after a queued DELETE is dropped, the object is gone anyway.</li>
+ * <li>CREATE and UPDATE collapse into CREATE.</li>
+ * <li>CREATE after a queued DELETE is kept, the object has been ingested again.</li>
+ * <li>An object DELETE supersedes the queued datastream CREATE and UPDATE jobs of the object,
+ * whose datastreams it deletes as well.</li>
+ * </ul>
+ * Merged jobs keep the earliest deadline of both. A replacing job of the same type is not
+ * postponed beyond the maximum deadline of the queued job, so jobs for documents that change
+ * continuously still become due.
+ */
+public class IndexJobCoalescer implements Coalescer<IndexJob> {
+
+    @Override
+    public Object key(IndexJob job) {
+        if (job instanceof ObjectIndexJob || job instanceof DatastreamIndexJob) {
+            return job.indexType() + "/" + job.esid();
+        }
+        return null;
+    }
+
+    @Override
+    public IndexJob coalesce(IndexJob queued, IndexJob offered) {
+        if (queued.type() == offered.type()) {
+            if (offered.maxDeadline() <= queued.maxDeadline()) {
+                return offered;
+            }
+            return copy(offered, Math.min(offered.deadline(), queued.maxDeadline()), queued.maxDeadline(), offered.lane());
+        }
+        switch (offered.type()) {
+            case DELETE:
+                return earliest(offered, queued);
+            case UPDATE:
+                return (queued.type() == DELETE) ? queued : earliest(queued, offered);
+            case CREATE:
+                return (queued.type() == DELETE) ? null : earliest(offered, queued);
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Object group(IndexJob job) {
+        if (job instanceof ObjectIndexJob || job instanceof DatastreamIndexJob) {
+            return job.pid();
+        }
+        return null;
+    }
+
+    @Override
+    public boolean sweeps(IndexJob offered) {
+        return offered instanceof ObjectIndexJob && offered.type() == DELETE;
+    }
+
+    @Override
+    public boolean supersedes(IndexJob offered, IndexJob queued) {
+        return queued instanceof DatastreamIndexJob
+                && queued.type() != DELETE
+                && queued.pid().equals(offered.pid());
+    }
+
+    private IndexJob earliest(IndexJob kept, IndexJob other) {
+        if (kept.deadline() <= other.deadline()) {
+            return kept;
+        }
+        return copy(kept, other.deadline(), Math.min(kept.maxDeadline(), other.maxDeadline()), priorLane(kept, other));
+    }
+
+    private IndexJob copy(IndexJob job, long deadline, long maxDeadline, IndexJob.Lane lane) {
+        IndexJob copy;
+        if (job instanceof DatastreamIndexJob) {
+            copy = new DatastreamIndexJob(job.type(), job.pid(), job.dsid());
+        } else {
+            copy = new ObjectIndexJob(job.type(), job.pid(), job.dsid());
+        }
+        copy.deadline(deadline);
+        return copy.lane(lane).maxDeadline(maxDeadline);
+    }
+
+    private IndexJob.Lane priorLane(IndexJob a, IndexJob b) {
+        return (a.lane().compareTo(b.lane()) <= 0) ? a.lane() : b.lane();
+    }
+
+}
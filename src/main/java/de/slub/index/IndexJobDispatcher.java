@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import de.slub.util.TerminateableRunnable;
+import org.elasticsearch.common.logging.ESLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes ready jobs to a fixed number of worker queues. Jobs are striped by PID,
+ * so all jobs of an object end up in the same worker queue in the order they became ready.
+ */
+public class IndexJobDispatcher extends TerminateableRunnable {
+
+    public static final int DEFAULT_STRIPE_CAPACITY = 1000;
+    private final BlockingQueue<IndexJob> queue;
+    private final List<BlockingQueue<IndexJob>> stripes;
+    private final ESLogger log;
+
+    public IndexJobDispatcher(BlockingQueue<IndexJob> indexJobQueue, int workers, int stripeCapacity, ESLogger logger) {
+        this.queue = indexJobQueue;
+        this.log = logger;
+        this.stripes = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            stripes.add(new LinkedBlockingQueue<IndexJob>(stripeCapacity));
+        }
+    }
+
+    public IndexJobDispatcher(BlockingQueue<IndexJob> indexJobQueue, int workers, ESLogger logger) {
+        this(indexJobQueue, workers, DEFAULT_STRIPE_CAPACITY, logger);
+    }
+
+    public BlockingQueue<IndexJob> stripe(int i) {
+        return stripes.get(i);
+    }
+
+    public int stripeCount() {
+        return stripes.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (isRunning()) {
+                IndexJob job = queue.poll(1, TimeUnit.SECONDS);
+                if (job != null) {
+                    dispatch(job);
+                }
+            }
+        } catch (InterruptedException ex) {
+            log.warn("Interrupted while dispatching index jobs: {}", ex.getMessage());
+        }
+    }
+
+    private void dispatch(IndexJob job) throws InterruptedException {
+        BlockingQueue<IndexJob> stripe = stripes.get(stripeIndex(job));
+        // wait for the worker to catch up, but keep responding to termination
+        while (!stripe.offer(job, 1, TimeUnit.SECONDS)) {
+            if (!isRunning()) {
+                log.warn("Dropped {} while shutting down", job);
+                return;
+            }
+        }
+    }
+
+    int stripeIndex(IndexJob job) {
+        return (job.pid().hashCode() & Integer.MAX_VALUE) % stripes.size();
+    }
+
+}
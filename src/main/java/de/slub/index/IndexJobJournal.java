@@ -0,0 +1,383 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import de.slub.util.TerminateableRunnable;
+import de.slub.util.concurrent.QueueListener;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped journal of queued index jobs.
+ * <p/>
+ * Every job that enters the queue is recorded as pending until it is either discarded by the
+ * queue or completed by a processor. Records are written to the mapped file immediately and
+ * forced to disk by the journal thread every flush interval (group commit). The same thread
+ * compacts the journal into a new file generation once it has grown large compared to the
+ * pending jobs it holds.
+ */
+public class IndexJobJournal extends TerminateableRunnable implements QueueListener<IndexJob> {
+
+    public static final TimeValue DEFAULT_FLUSH_INTERVAL = TimeValue.timeValueMillis(200);
+    public static final ByteSizeValue DEFAULT_COMPACT_THRESHOLD = new ByteSizeValue(64, ByteSizeUnit.MB);
+    private static final int MAGIC = 0x46524a33; // "FRJ3"
+    private static final int HEADER_SIZE = 4;
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final int MIN_MAPPED_SIZE = 1024 * 1024;
+    private static final byte OP_PENDING = 1;
+    private static final byte OP_DONE = 2;
+    private static final byte KIND_OBJECT = 'O';
+    private static final byte KIND_DATASTREAM = 'D';
+    private static final String FILE_PREFIX = "journal-";
+    private static final String FILE_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final TimeValue flushInterval;
+    private final ByteSizeValue compactThreshold;
+    private final ESLogger log;
+    private final LinkedHashSet<ByteBuffer> pending = new LinkedHashSet<>();
+    private final CRC32 crc = new CRC32();
+    private long generation = 0;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private long pendingBytes = 0;
+    private boolean dirty = false;
+
+    public IndexJobJournal(File directory, TimeValue flushInterval, ByteSizeValue compactThreshold, ESLogger logger) {
+        this.directory = directory;
+        this.flushInterval = flushInterval;
+        this.compactThreshold = compactThreshold;
+        this.log = logger;
+    }
+
+    public IndexJobJournal(File directory, ESLogger logger) {
+        this(directory, DEFAULT_FLUSH_INTERVAL, DEFAULT_COMPACT_THRESHOLD, logger);
+    }
+
+    /**
+     * Opens the journal and returns the jobs that were still pending when it was last written.
+     * Their delays are adjusted so they become ready at their original deadline.
+     */
+    public synchronized List<IndexJob> open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory.getAbsolutePath());
+        }
+
+        // a generation that cannot be read falls back to the one before it
+        for (File generationFile : generationFiles()) {
+            if (replay(generationFile)) {
+                break;
+            }
+        }
+
+        List<IndexJob> jobs = new ArrayList<>(pending.size());
+        long now = System.currentTimeMillis();
+        for (ByteBuffer record : pending) {
+            jobs.add(decode(record.duplicate(), now));
+        }
+
+        // restored jobs get new deadlines, record them as they are going to be queued
+        pending.clear();
+        pendingBytes = 0;
+        for (IndexJob job : jobs) {
+            pending.add(encode(job));
+        }
+        rewrite();
+
+        log.info("Opened job journal {} with {} pending jobs", currentFile().getAbsolutePath(), jobs.size());
+        return jobs;
+    }
+
+    @Override
+    public synchronized void enqueued(IndexJob job) {
+        ByteBuffer record = encode(job);
+        if (record != null && pending.add(record)) {
+            pendingBytes += FRAME_HEADER_SIZE + 1 + record.remaining();
+            append(OP_PENDING, record);
+        }
+    }
+
+    @Override
+    public synchronized void discarded(IndexJob job) {
+        done(job);
+    }
+
+    public synchronized void completed(IndexJob job) {
+        done(job);
+    }
+
+    public synchronized int pendingJobs() {
+        return pending.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (isRunning()) {
+                TimeUnit.MILLISECONDS.sleep(flushInterval.millis());
+                flush();
+                if (needsCompaction()) {
+                    compact();
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while writing job journal: {}", e.getMessage());
+        } catch (IOException e) {
+            log.error("Cannot write job journal: {}", e.getMessage());
+        } finally {
+            close();
+        }
+    }
+
+    public synchronized void flush() {
+        if (dirty && buffer != null) {
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    public synchronized void close() {
+        if (channel != null) {
+            flush();
+            try {
+                file.close();
+            } catch (IOException e) {
+                log.warn("Error closing job journal: {}", e.getMessage());
+            }
+            channel = null;
+            buffer = null;
+        }
+    }
+
+    synchronized boolean needsCompaction() {
+        return buffer != null
+                && buffer.position() > compactThreshold.bytes()
+                && buffer.position() > 2 * (HEADER_SIZE + pendingBytes);
+    }
+
+    synchronized void compact() throws IOException {
+        if (channel == null) return;
+        long before = buffer.position();
+        rewrite();
+        log.debug("Compacted job journal from {} to {} bytes", before, buffer.position());
+    }
+
+    private void done(IndexJob job) {
+        ByteBuffer record = encode(job);
+        if (record != null && pending.remove(record)) {
+            pendingBytes -= FRAME_HEADER_SIZE + 1 + record.remaining();
+            append(OP_DONE, record);
+        }
+    }
+
+    private void append(byte op, ByteBuffer record) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            int length = 1 + record.remaining();
+            ensureCapacity(FRAME_HEADER_SIZE + length + 4);
+
+            crc.reset();
+            crc.update(op);
+            crc.update(record.array(), record.arrayOffset() + record.position(), record.remaining());
+
+            int start = buffer.position();
+            buffer.position(start + FRAME_HEADER_SIZE);
+            buffer.put(op);
+            buffer.put(record.duplicate());
+            int end = buffer.position();
+            buffer.putInt(start + 4, (int) crc.getValue());
+            // a non-zero length marks the record as complete, so write it last
+            buffer.putInt(start, length);
+            buffer.position(end);
+            dirty = true;
+        } catch (IOException e) {
+            log.error("Cannot append to job journal: {}", e.getMessage());
+        }
+    }
+
+    private void ensureCapacity(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            int position = buffer.position();
+            long size = Math.max(buffer.capacity() * 2L, position + bytes);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.position(position);
+        }
+    }
+
+    /**
+     * Reads the pending jobs of a journal file.
+     *
+     * @return false if the file has no valid header
+     */
+    private boolean replay(File journalFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(journalFile, "r")) {
+            FileChannel ch = raf.getChannel();
+            ByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC) {
+                log.warn("Ignoring unreadable job journal file {}", journalFile.getAbsolutePath());
+                return false;
+            }
+            while (in.remaining() >= FRAME_HEADER_SIZE) {
+                int length = in.getInt();
+                int checksum = in.getInt();
+                if (length <= 0 || length > in.remaining()) break;
+
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                crc.reset();
+                crc.update(bytes, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("Job journal {} has a corrupt record, ignoring the rest of it", journalFile.getAbsolutePath());
+                    break;
+                }
+
+                ByteBuffer record = ByteBuffer.wrap(bytes, 1, length - 1).slice();
+                if (bytes[0] == OP_PENDING) {
+                    pending.add(record);
+                } else if (bytes[0] == OP_DONE) {
+                    pending.remove(record);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the pending jobs to a new generation. The file is complete and forced to disk
+     * before it is renamed into place, so a crash leaves either generation readable.
+     */
+    private void rewrite() throws IOException {
+        close();
+
+        generation++;
+        File temp = new File(directory, FILE_PREFIX + generation + FILE_SUFFIX + TEMP_SUFFIX);
+        file = new RandomAccessFile(temp, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(MIN_MAPPED_SIZE, 2 * (HEADER_SIZE + pendingBytes)));
+        buffer.putInt(MAGIC);
+
+        pendingBytes = 0;
+        for (ByteBuffer record : pending) {
+            pendingBytes += FRAME_HEADER_SIZE + 1 + record.remaining();
+            append(OP_PENDING, record);
+        }
+        buffer.force();
+        dirty = false;
+        Files.move(temp.toPath(), currentFile().toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().startsWith(FILE_PREFIX) && !f.equals(currentFile()) && !f.delete()) {
+                    log.warn("Cannot delete old job journal {}", f.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the journal generation files, newest first, and moves the generation counter past them.
+     */
+    private List<File> generationFiles() {
+        TreeMap<Long, File> generations = new TreeMap<>(Collections.reverseOrder());
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                    try {
+                        long g = Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+                        generations.put(g, f);
+                        generation = Math.max(generation, g);
+                    } catch (NumberFormatException e) {
+                        // not a journal file
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(generations.values());
+    }
+
+    private File currentFile() {
+        return new File(directory, FILE_PREFIX + generation + FILE_SUFFIX);
+    }
+
+    private ByteBuffer encode(IndexJob job) {
+        byte kind;
+        if (job instanceof DatastreamIndexJob) {
+            kind = KIND_DATASTREAM;
+        } else if (job instanceof ObjectIndexJob) {
+            kind = KIND_OBJECT;
+        } else {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(kind);
+            out.writeByte(job.type().ordinal());
+            out.writeByte(job.lane().ordinal());
+            out.writeLong(job.deadline());
+            out.writeLong(job.maxDeadline());
+            out.writeUTF(job.pid());
+            out.writeUTF(job.dsid());
+            out.flush();
+            return ByteBuffer.wrap(bytes.toByteArray());
+        } catch (IOException e) {
+            log.error("Cannot encode {} for job journal: {}", job, e.getMessage());
+            return null;
+        }
+    }
+
+    private IndexJob decode(ByteBuffer record, long now) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                record.array(), record.arrayOffset() + record.position(), record.remaining()));
+        byte kind = in.readByte();
+        IndexJob.Type type = IndexJob.Type.values()[in.readByte()];
+        IndexJob.Lane lane = IndexJob.Lane.values()[in.readByte()];
+        long delay = Math.max(0, in.readLong() - now);
+        long maxDeadline = in.readLong();
+        String pid = in.readUTF();
+        String dsid = in.readUTF();
+        IndexJob job;
+        if (kind == KIND_DATASTREAM) {
+            job = new DatastreamIndexJob(type, pid, dsid, delay, TimeUnit.MILLISECONDS);
+        } else {
+            job = new ObjectIndexJob(type, pid, dsid, delay, TimeUnit.MILLISECONDS);
+        }
+        return job.lane(lane).maxDeadline(maxDeadline);
+    }
+
+}
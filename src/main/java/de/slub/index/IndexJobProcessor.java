@@ -18,13 +18,21 @@ package de.slub.index;
 
 import com.yourmediashelf.fedora.client.FedoraClient;
 import de.slub.util.TerminateableRunnable;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
 
-import java.util.Calendar;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -32,23 +40,49 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 public class IndexJobProcessor extends TerminateableRunnable {
 
     public static final String ES_ERROR_TYPE_NAME = "error";
+    public static final int DEFAULT_BULK_SIZE = 100;
+    public static final ByteSizeValue DEFAULT_BULK_MAX_BYTES = new ByteSizeValue(5, ByteSizeUnit.MB);
+    public static final boolean DEFAULT_INCREMENTAL = true;
     private final Client client;
     private final BlockingQueue<IndexJob> queue;
+    private final Queue<IndexJob> followUpQueue;
     private final ESLogger log;
     private final FedoraClient fedoraClient;
     private final String indexName;
     private final String sdefPid;
     private final String method;
+    private final int bulkSize;
+    private final ByteSizeValue bulkMaxBytes;
+    private final IndexJobJournal journal;
+    private final ExecutorService executor;
+    private final boolean incremental;
+    private final ContentExtractor extractor;
 
-    public IndexJobProcessor(BlockingQueue<IndexJob> indexJobQueue, String indexName, Client esClient,
-                             FedoraClient fedoraClient, ESLogger logger, String sdefPid, String method) {
+    public IndexJobProcessor(BlockingQueue<IndexJob> indexJobQueue, Queue<IndexJob> followUpJobQueue,
+                             String indexName, Client esClient, FedoraClient fedoraClient, ESLogger logger,
+                             String sdefPid, String method, int bulkSize, ByteSizeValue bulkMaxBytes,
+                             IndexJobJournal journal, ExecutorService executor, boolean incremental,
+                             ContentExtractor extractor) {
         this.client = esClient;
         this.queue = indexJobQueue;
+        this.followUpQueue = followUpJobQueue;
         this.indexName = indexName;
         this.fedoraClient = fedoraClient;
         this.log = logger;
         this.sdefPid = sdefPid;
         this.method = method;
+        this.bulkSize = Math.max(1, bulkSize);
+        this.bulkMaxBytes = bulkMaxBytes;
+        this.journal = journal;
+        this.executor = executor;
+        this.incremental = incremental;
+        this.extractor = extractor;
+    }
+
+    public IndexJobProcessor(BlockingQueue<IndexJob> indexJobQueue, String indexName, Client esClient,
+                             FedoraClient fedoraClient, ESLogger logger, String sdefPid, String method) {
+        this(indexJobQueue, indexJobQueue, indexName, esClient, fedoraClient, logger, sdefPid, method,
+                DEFAULT_BULK_SIZE, DEFAULT_BULK_MAX_BYTES, null, null, DEFAULT_INCREMENTAL, null);
     }
 
     public IndexJobProcessor(BlockingQueue<IndexJob> indexJobQueue, String indexName, Client esClient,
@@ -60,10 +94,12 @@ public class IndexJobProcessor extends TerminateableRunnable {
     public void run() {
         try {
             while (isRunning()) {
-                // TODO take as much jobs as possible and do Bulk-Operation
                 IndexJob job = queue.poll(1, TimeUnit.SECONDS);
                 if (job != null) {
-                    perform(job);
+                    List<IndexJob> jobs = new ArrayList<>(bulkSize);
+                    jobs.add(job);
+                    queue.drainTo(jobs, bulkSize - 1);
+                    perform(jobs);
                 }
             }
         } catch (Exception ex) {
@@ -71,38 +107,178 @@ public class IndexJobProcessor extends TerminateableRunnable {
         }
     }
 
+    private void perform(List<IndexJob> jobs) {
+        if (incremental) {
+            lookupIndexedVersions(jobs);
+        }
+        BulkRequestBuilder bulkRequest = client.prepareBulk();
+        List<IndexJob> itemJobs = new ArrayList<>();
+        int prefetched = 0;
+
+        for (int position = 0; position < jobs.size(); position++) {
+            IndexJob job = jobs.get(position);
+            prefetched = prefetch(jobs, prefetched, position, position + 1 + ((extractor == null) ? 0 : extractor.threads()));
+            if (!job.isBulkable()) {
+                // send pending bulk items first to not reorder operations on the same object
+                flush(bulkRequest, itemJobs);
+                bulkRequest = client.prepareBulk();
+                itemJobs.clear();
+                perform(job);
+                continue;
+            }
+
+            log.debug("Performing: " + job);
+            int actionsBefore = bulkRequest.numberOfActions();
+            try {
+                List<IndexJob> newJobs = prepare(job).execute(fedoraClient, client, bulkRequest, log);
+                for (IndexJob indexJob : newJobs) followUpQueue.add(indexJob);
+            } catch (Exception ex) {
+                log.error("Error: " + ex.getMessage());
+                writeErrorDocument(job, ex.getMessage());
+            } finally {
+                for (int i = actionsBefore; i < bulkRequest.numberOfActions(); i++) itemJobs.add(job);
+            }
+
+            if (bulkRequest.request().estimatedSizeInBytes() >= bulkMaxBytes.bytes()) {
+                flush(bulkRequest, itemJobs);
+                bulkRequest = client.prepareBulk();
+                itemJobs.clear();
+            }
+        }
+
+        flush(bulkRequest, itemJobs);
+
+        if (journal != null) {
+            for (IndexJob job : jobs) journal.completed(job);
+        }
+    }
+
+    /**
+     * Hands the datastream jobs up to the given index to the extraction stage ahead of their
+     * turn, so that only as many documents as can be extracted at once are held in memory.
+     * Prefetching stops at a datastream of an object that has a non-bulkable job pending from
+     * the current position on, e.g. an object DELETE, which has to be performed first.
+     */
+    private int prefetch(List<IndexJob> jobs, int from, int position, int to) {
+        Set<String> pendingPids = new HashSet<>();
+        for (int i = position; i < from; i++) {
+            if (!jobs.get(i).isBulkable()) pendingPids.add(jobs.get(i).pid());
+        }
+        int end = Math.min(to, jobs.size());
+        for (int i = from; i < end; i++) {
+            IndexJob job = jobs.get(i);
+            if (job instanceof DatastreamIndexJob) {
+                if (pendingPids.contains(job.pid())) {
+                    return i;
+                }
+                ((DatastreamIndexJob) prepare(job)).prefetch(fedoraClient);
+            }
+            if (!job.isBulkable()) pendingPids.add(job.pid());
+        }
+        return Math.max(from, end);
+    }
+
+    private void flush(BulkRequestBuilder bulkRequest, List<IndexJob> itemJobs) {
+        if (bulkRequest.numberOfActions() == 0) {
+            return;
+        }
+
+        log.debug("Sending bulk request with {} actions", bulkRequest.numberOfActions());
+        try {
+            BulkResponse response = bulkRequest.execute().actionGet();
+            if (response.hasFailures()) {
+                Set<IndexJob> failedJobs = Collections.newSetFromMap(new IdentityHashMap<IndexJob, Boolean>());
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) {
+                        IndexJob job = itemJobs.get(item.getItemId());
+                        if (failedJobs.add(job)) {
+                            log.error("Error: " + item.getFailureMessage());
+                            writeErrorDocument(job, item.getFailureMessage());
+                        }
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            log.error("Error: " + ex.getMessage());
+            for (IndexJob job : new LinkedHashSet<>(itemJobs)) {
+                writeErrorDocument(job, ex.getMessage());
+            }
+        }
+    }
+
     private void perform(IndexJob job) {
         log.debug("Performing: " + job);
         try {
-            List<IndexJob> newJobs = job
-                    .index(indexName)
-                    .sdefPid(sdefPid)
-                    .method(method)
-                    .execute(fedoraClient, client, log);
+            List<IndexJob> newJobs = prepare(job).execute(fedoraClient, client, log);
 
-            for (IndexJob indexJob : newJobs) queue.add(indexJob);
+            for (IndexJob indexJob : newJobs) followUpQueue.add(indexJob);
 
         } catch (Exception ex) {
             log.error("Error: " + ex.getMessage());
+            writeErrorDocument(job, ex.getMessage());
+        }
+    }
 
-            Calendar calendar = Calendar.getInstance();
-            Date timestamp = calendar.getTime();
+    /**
+     * Fetches the content version of all datastream documents of the given jobs with a single
+     * multi-get, so that jobs can skip extracting content that has not changed.
+     */
+    private void lookupIndexedVersions(List<IndexJob> jobs) {
+        MultiGetRequestBuilder request = client.prepareMultiGet();
+        List<DatastreamIndexJob> lookups = new ArrayList<>();
+        for (IndexJob job : jobs) {
+            if (job instanceof DatastreamIndexJob && job.type() != IndexJob.Type.DELETE) {
+                request.add(new MultiGetRequest.Item(indexName, DatastreamIndexJob.ES_TYPE_NAME, job.esid())
+                        .routing(job.pid())
+                        .fetchSourceContext(new FetchSourceContext(DatastreamIndexJob.CONTENT_VERSION_FIELDS)));
+                lookups.add((DatastreamIndexJob) job);
+            }
+        }
+        if (lookups.isEmpty()) {
+            return;
+        }
 
-            try {
-                client.prepareIndex(indexName, ES_ERROR_TYPE_NAME, job.esid())
-                        .setSource(
-                                jsonBuilder().startObject()
-                                        .field("PID", job.pid())
-                                        .field("DSID", job.dsid())
-                                        .field("job", job.toString())
-                                        .field("message", ex.getMessage())
-                                        .field("timestamp", timestamp)
-                                        .endObject()
-                        ).execute().actionGet();
-            } catch (Exception e) {
-                log.error("Cannot write index error to node: " + e.getMessage());
+        try {
+            MultiGetItemResponse[] responses = request.execute().actionGet().getResponses();
+            for (int i = 0; i < responses.length; i++) {
+                MultiGetItemResponse item = responses[i];
+                if (!item.isFailed() && item.getResponse().isExists()) {
+                    lookups.get(i).indexedVersion(item.getResponse().getSourceAsMap());
+                }
             }
+        } catch (Exception ex) {
+            log.warn("Cannot look up indexed datastream versions, indexing all content: {}", ex.getMessage());
+        }
+    }
+
+    private IndexJob prepare(IndexJob job) {
+        if (extractor != null && job instanceof DatastreamIndexJob) {
+            ((DatastreamIndexJob) job).extractor(extractor);
+        }
+        return job
+                .index(indexName)
+                .sdefPid(sdefPid)
+                .method(method)
+                .executor(executor);
+    }
+
+    private void writeErrorDocument(IndexJob job, String message) {
+        Calendar calendar = Calendar.getInstance();
+        Date timestamp = calendar.getTime();
 
+        try {
+            client.prepareIndex(indexName, ES_ERROR_TYPE_NAME, job.esid())
+                    .setSource(
+                            jsonBuilder().startObject()
+                                    .field("PID", job.pid())
+                                    .field("DSID", job.dsid())
+                                    .field("job", job.toString())
+                                    .field("message", message)
+                                    .field("timestamp", timestamp)
+                                    .endObject()
+                    ).execute().actionGet();
+        } catch (Exception e) {
+            log.error("Cannot write index error to node: " + e.getMessage());
         }
     }
 }
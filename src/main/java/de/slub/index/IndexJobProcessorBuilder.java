@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import com.yourmediashelf.fedora.client.FedoraClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+public class IndexJobProcessorBuilder {
+
+    private BlockingQueue<IndexJob> indexJobQueue;
+    private Queue<IndexJob> followUpJobQueue;
+    private String indexName;
+    private Client esClient;
+    private FedoraClient fedoraClient;
+    private ESLogger logger;
+    private String sdefPid = "";
+    private String method = "";
+    private int bulkSize = IndexJobProcessor.DEFAULT_BULK_SIZE;
+    private ByteSizeValue bulkMaxBytes = IndexJobProcessor.DEFAULT_BULK_MAX_BYTES;
+    private IndexJobJournal journal;
+    private ExecutorService executor;
+    private boolean incremental = IndexJobProcessor.DEFAULT_INCREMENTAL;
+    private ContentExtractor extractor;
+
+    public IndexJobProcessor build() {
+        return new IndexJobProcessor(
+                indexJobQueue,
+                (followUpJobQueue == null) ? indexJobQueue : followUpJobQueue,
+                indexName,
+                esClient,
+                fedoraClient,
+                logger,
+                sdefPid,
+                method,
+                bulkSize,
+                bulkMaxBytes,
+                journal,
+                executor,
+                incremental,
+                extractor);
+    }
+
+    public IndexJobProcessorBuilder settings(Map<String, Object> indexSettings) {
+        if (indexSettings.containsKey("bulk_size")) {
+            bulkSize = XContentMapValues.nodeIntegerValue(
+                    indexSettings.get("bulk_size"), IndexJobProcessor.DEFAULT_BULK_SIZE);
+        }
+        if (indexSettings.containsKey("bulk_max_bytes")) {
+            bulkMaxBytes = ByteSizeValue.parseBytesSizeValue(
+                    String.valueOf(indexSettings.get("bulk_max_bytes")), IndexJobProcessor.DEFAULT_BULK_MAX_BYTES);
+        }
+        if (indexSettings.containsKey("incremental")) {
+            incremental = XContentMapValues.nodeBooleanValue(
+                    indexSettings.get("incremental"), IndexJobProcessor.DEFAULT_INCREMENTAL);
+        }
+        return this;
+    }
+
+    public IndexJobProcessorBuilder indexJobQueue(BlockingQueue<IndexJob> indexJobQueue) {
+        this.indexJobQueue = indexJobQueue;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder followUpJobQueue(Queue<IndexJob> followUpJobQueue) {
+        this.followUpJobQueue = followUpJobQueue;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder indexName(String indexName) {
+        this.indexName = indexName;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder esClient(Client esClient) {
+        this.esClient = esClient;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder fedoraClient(FedoraClient fedoraClient) {
+        this.fedoraClient = fedoraClient;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder logger(ESLogger logger) {
+        this.logger = logger;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder sdefPid(String sdefPid) {
+        this.sdefPid = sdefPid;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder method(String method) {
+        this.method = method;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder bulkSize(int bulkSize) {
+        this.bulkSize = bulkSize;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder bulkMaxBytes(ByteSizeValue bulkMaxBytes) {
+        this.bulkMaxBytes = bulkMaxBytes;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder journal(IndexJobJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder executor(ExecutorService executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder extractor(ContentExtractor extractor) {
+        this.extractor = extractor;
+        return this;
+    }
+
+    public IndexJobProcessorBuilder incremental(boolean incremental) {
+        this.incremental = incremental;
+        return this;
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import de.slub.util.concurrent.LaneSelector;
+
+public class LanePredicate implements LaneSelector<IndexJob> {
+
+    private final IndexJob.Lane lane;
+
+    public LanePredicate(IndexJob.Lane lane) {
+        this.lane = lane;
+    }
+
+    @Override
+    public boolean evaluate(IndexJob job) {
+        return job.lane() == lane;
+    }
+
+    @Override
+    public void assign(IndexJob job) {
+        job.lane(lane);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.apache.tika.parser.Parser;
+
+import java.util.*;
+
+/**
+ * Decides by MIME type how the content of a datastream is extracted.
+ * <p/>
+ * Each MIME type, type wildcard (e.g. {@code image/*}) or {@code *} maps to {@code auto} for
+ * Tika's auto-detection, {@code raw} for indexing the content as it is, {@code skip} for not
+ * fetching the content at all, or the class name of a Tika parser. Parser instances are created
+ * once and shared by all MIME types that use them. Types that are not in the table are
+ * auto-detected.
+ */
+public class MimeTypeRouting {
+
+    public static final String AUTO = "auto";
+    public static final String RAW = "raw";
+    public static final String SKIP = "skip";
+    public static final Map<String, String> DEFAULT_ROUTES;
+    public static final MimeTypeRouting DEFAULT;
+
+    static {
+        Map<String, String> routes = new LinkedHashMap<>();
+        routes.put("text/plain", RAW);
+        routes.put("text/xml", RAW);
+        routes.put("application/xml", RAW);
+        routes.put("image/*", SKIP);
+        routes.put("audio/*", SKIP);
+        routes.put("video/*", SKIP);
+        DEFAULT_ROUTES = Collections.unmodifiableMap(routes);
+        DEFAULT = new MimeTypeRouting(Collections.<String, Object>emptyMap());
+    }
+
+    private final Map<String, Route> routes = new HashMap<>();
+    private final Route auto = new Route(AUTO, Action.AUTO, null);
+
+    /**
+     * @param routes Routes that add to or replace the default routes
+     * @throws IllegalArgumentException if a parser class cannot be instantiated
+     */
+    public MimeTypeRouting(Map<String, ?> routes) {
+        Map<String, Object> table = new LinkedHashMap<String, Object>(DEFAULT_ROUTES);
+        table.putAll(routes);
+        Map<String, Route> parsers = new HashMap<>();
+        for (Map.Entry<String, Object> entry : table.entrySet()) {
+            this.routes.put(normalize(entry.getKey()), route(String.valueOf(entry.getValue()).trim(), parsers));
+        }
+    }
+
+    public Route route(String mimeType) {
+        if (mimeType == null) {
+            return routes.containsKey("*") ? routes.get("*") : auto;
+        }
+        String type = normalize(mimeType);
+        Route route = routes.get(type);
+        if (route == null) {
+            int slash = type.indexOf('/');
+            route = (slash > 0) ? routes.get(type.substring(0, slash) + "/*") : null;
+        }
+        if (route == null) {
+            route = routes.get("*");
+        }
+        return (route == null) ? auto : route;
+    }
+
+    /**
+     * Returns the value of the charset parameter of the MIME type, or null if there is none.
+     */
+    public static String charset(String mimeType) {
+        if (mimeType != null) {
+            for (String parameter : mimeType.split(";")) {
+                String[] pair = parameter.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("charset")) {
+                    return pair[1].trim().replace("\"", "");
+                }
+            }
+        }
+        return null;
+    }
+
+    private Route route(String name, Map<String, Route> parsers) {
+        switch (name) {
+            case AUTO:
+                return auto;
+            case RAW:
+                return new Route(RAW, Action.RAW, null);
+            case SKIP:
+                return new Route(SKIP, Action.SKIP, null);
+        }
+        Route route = parsers.get(name);
+        if (route == null) {
+            try {
+                Parser parser = Class.forName(name).asSubclass(Parser.class).newInstance();
+                route = new Route(name, Action.PARSE, parser);
+                parsers.put(name, route);
+            } catch (ClassNotFoundException | ClassCastException | InstantiationException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Not a Tika parser: " + name, e);
+            }
+        }
+        return route;
+    }
+
+    private static String normalize(String mimeType) {
+        int semicolon = mimeType.indexOf(';');
+        String type = (semicolon < 0) ? mimeType : mimeType.substring(0, semicolon);
+        return type.trim().toLowerCase(Locale.ROOT);
+    }
+
+    public enum Action {
+        AUTO,
+        PARSE,
+        RAW,
+        SKIP
+    }
+
+    public static class Route {
+        public final String name;
+        public final Action action;
+        public final Parser parser;
+
+        Route(String name, Action action, Parser parser) {
+            this.name = name;
+            this.action = action;
+            this.parser = parser;
+        }
+    }
+
+}
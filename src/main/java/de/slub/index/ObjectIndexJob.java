@@ -25,6 +25,8 @@ import com.yourmediashelf.fedora.client.response.FedoraResponse;
 import com.yourmediashelf.fedora.client.response.GetDatastreamsResponse;
 import com.yourmediashelf.fedora.client.response.GetObjectProfileResponse;
 import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
+import org.apache.commons.io.IOUtils;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -35,6 +37,8 @@ import org.elasticsearch.common.xcontent.XContentType;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -92,29 +96,74 @@ public class ObjectIndexJob extends IndexJob {
 
     @Override
     protected List<IndexJob> executeCreate(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception {
+        Future<List<IndexJob>> datastreamIndexJobs = submitDatastreamListing(fedoraClient, log);
+
         client.prepareIndex(index(), indexType(), esid())
                 .setSource(buildIndexObject(fedoraClient))
                 .execute().actionGet();
 
+        deleteErrorDocuments(client);
+
+        return await(datastreamIndexJobs);
+    }
+
+    @Override
+    public boolean isBulkable() {
+        // Deleting an object requires a delete-by-query which is not available as bulk item
+        return type() != Type.DELETE;
+    }
+
+    @Override
+    protected List<IndexJob> bulkUpdate(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+        addIndexRequests(fedoraClient, client, bulkRequest);
+        return EMPTY_LIST;
+    }
+
+    @Override
+    protected List<IndexJob> bulkCreate(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+        Future<List<IndexJob>> datastreamIndexJobs = submitDatastreamListing(fedoraClient, log);
+        addIndexRequests(fedoraClient, client, bulkRequest);
+        return await(datastreamIndexJobs);
+    }
+
+    private void addIndexRequests(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest) throws Exception {
+        bulkRequest.add(client.prepareIndex(index(), indexType(), esid())
+                .setSource(buildIndexObject(fedoraClient)));
+        bulkRequest.add(client.prepareDelete(index(), IndexJobProcessor.ES_ERROR_TYPE_NAME, esid()));
+    }
+
+    private Future<List<IndexJob>> submitDatastreamListing(final FedoraClient fedoraClient, final ESLogger log) {
+        return submit(new Callable<List<IndexJob>>() {
+            @Override
+            public List<IndexJob> call() {
+                return createDatastreamIndexJobs(fedoraClient, log);
+            }
+        });
+    }
+
+    private List<IndexJob> createDatastreamIndexJobs(FedoraClient fedoraClient, ESLogger log) {
         List<IndexJob> datastreamIndexJobs = new ArrayList<>();
         try {
             GetDatastreamsResponse getDatastreamsResponse =
                     (GetDatastreamsResponse) fedoraClient.execute(new GetDatastreams(pid()));
             for (DatastreamProfile dp : getDatastreamsResponse.getDatastreamProfiles()) {
                 datastreamIndexJobs.add(
-                        new DatastreamIndexJob(Type.CREATE, dp.getPid(), dp.getDsID()));
+                        new DatastreamIndexJob(Type.CREATE, dp.getPid(), dp.getDsID()).lane(lane()));
             }
         } catch (Exception ex) {
             log.error("Couldn't generate datastream index jobs for {}. Reason: {}",
                     pid(), ex.getMessage());
         }
-
-        deleteErrorDocuments(client);
-
         return datastreamIndexJobs;
     }
 
-    private XContentBuilder buildIndexObject(FedoraClient fedoraClient) throws Exception {
+    private XContentBuilder buildIndexObject(final FedoraClient fedoraClient) throws Exception {
+        Future<byte[]> disseminationResult = submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return getDisseminationResult(fedoraClient);
+            }
+        });
         GetObjectProfileResponse profileResponse = (GetObjectProfileResponse)
                 fedoraClient.execute(new GetObjectProfile(pid()));
         XContentBuilder builder = jsonBuilder().startObject()
@@ -124,30 +173,27 @@ public class ObjectIndexJob extends IndexJob {
                 .field("OWNER_ID", profileResponse.getOwnerId())
                 .field("CREATED_DATE", profileResponse.getCreateDate())
                 .field("LAST_MODIFIED_DATE", profileResponse.getLastModifiedDate());
-        addDisseminationResult(builder, fedoraClient);
+        addDisseminationResult(builder, await(disseminationResult));
         builder.endObject();
         return builder;
     }
 
-    private void addDisseminationResult(XContentBuilder builder, FedoraClient fedoraClient)
-            throws Exception {
-        try {
-            if (sdefPid() == null || method() == null || sdefPid().isEmpty() || method().isEmpty()) {
-                return;
-            }
+    private byte[] getDisseminationResult(FedoraClient fedoraClient) throws Exception {
+        if (sdefPid() == null || method() == null || sdefPid().isEmpty() || method().isEmpty()) {
+            return null;
+        }
 
+        try {
             FedoraResponse disseminationResult =
                     fedoraClient.execute(new GetDissemination(pid(), sdefPid(), method()));
-
-            if (disseminationResult.getStatus() == 200) {
-                XContentParser parser = XContentFactory.xContent(XContentType.JSON)
-                        .createParser(disseminationResult.getEntityInputStream());
-                builder.startObject("_dissemination")
-                        .field("_sdef_pid", sdefPid())
-                        .field("_method", method())
-                        .field("_content")
-                        .copyCurrentStructure(parser)
-                        .endObject();
+            try {
+                if (disseminationResult.getStatus() == 200) {
+                    return IOUtils.toByteArray(disseminationResult.getEntityInputStream());
+                }
+                return null;
+            } finally {
+                // release the pooled connection
+                disseminationResult.close();
             }
         } catch (FedoraClientException fex) {
             throw new Exception(
@@ -158,6 +204,26 @@ public class ObjectIndexJob extends IndexJob {
         }
     }
 
+    private void addDisseminationResult(XContentBuilder builder, byte[] disseminationResult) throws Exception {
+        if (disseminationResult == null) {
+            return;
+        }
+
+        try {
+            XContentParser parser = XContentFactory.xContent(XContentType.JSON)
+                    .createParser(disseminationResult);
+            builder.startObject("_dissemination")
+                    .field("_sdef_pid", sdefPid())
+                    .field("_method", method())
+                    .field("_content")
+                    .copyCurrentStructure(parser)
+                    .endObject();
+        } catch (IOException ioex) {
+            throw new Exception(
+                    String.format("Failed parsing dissemination: %s", ioex.getMessage()));
+        }
+    }
+
     private void deleteErrorDocuments(Client client) {
         client.prepareDeleteByQuery(index())
                 .setTypes(IndexJobProcessor.ES_ERROR_TYPE_NAME)
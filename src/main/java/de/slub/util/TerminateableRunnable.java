@@ -18,7 +18,7 @@ package de.slub.util;
 
 public abstract class TerminateableRunnable implements Runnable {
 
-    private boolean terminated = false;
+    private volatile boolean terminated = false;
 
     public void terminate() {
         terminated = true;
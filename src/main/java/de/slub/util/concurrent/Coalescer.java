@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.util.concurrent;
+
+/**
+ * Merges an offered element with a queued element that refers to the same subject.
+ * Called under the queue lock, implementations must not modify the given elements.
+ */
+public interface Coalescer<T> {
+
+    /**
+     * Returns the key of the subject an element refers to, or null if the element never coalesces.
+     */
+    Object key(T element);
+
+    /**
+     * Returns the element to keep in place of both, which may be the queued element, the offered
+     * element or a new one. Returns null if both elements have to stay queued.
+     */
+    T coalesce(T queued, T offered);
+
+    /**
+     * Returns the group of an element, or null if it belongs to none. Queues index their elements
+     * by group, an element can only supersede elements of its own group.
+     */
+    Object group(T element);
+
+    /**
+     * Returns true if the offered element makes queued elements with other keys obsolete, see
+     * {@link #supersedes}. Queues only look for such elements if this returns true.
+     */
+    boolean sweeps(T offered);
+
+    /**
+     * Returns true if the queued element of the same group is obsolete once the offered element
+     * is queued.
+     */
+    boolean supersedes(T offered, T queued);
+
+}
@@ -38,11 +38,27 @@ public class DelayedQueueElement implements Delayed {
         return unit.convert(delay - (System.currentTimeMillis() - origin), TimeUnit.MILLISECONDS);
     }
 
+    public long deadline() {
+        return origin + delay;
+    }
+
+    /**
+     * Moves the deadline to the given time (epoch millis).
+     */
+    public void deadline(long deadline) {
+        this.delay = deadline - origin;
+    }
+
     @Override
     public int compareTo(Delayed o) {
         if (o == this) return 0;
 
-        long d = delay - o.getDelay(TimeUnit.MILLISECONDS);
+        long d;
+        if (o instanceof DelayedQueueElement) {
+            d = deadline() - ((DelayedQueueElement) o).deadline();
+        } else {
+            d = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+        }
         return ((d == 0) ? 0 : ((d < 0) ? -1 : 1));
     }
 
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.util.concurrent;
+
+import de.slub.util.Predicate;
+
+/**
+ * Lane selector of a {@link WeightedLaneQueue} that can also mark an element as belonging to
+ * its lane, for elements that are moved into the lane to be queued with a related element.
+ */
+public interface LaneSelector<T> extends Predicate<T> {
+
+    void assign(T e);
+
+}
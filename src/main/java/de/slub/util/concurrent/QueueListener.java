@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.util.concurrent;
+
+/**
+ * Gets notified when elements enter a queue or are dropped from it without being taken.
+ * Callbacks are invoked while the queue is locked and should return quickly.
+ */
+public interface QueueListener<T> {
+
+    public void enqueued(T element);
+
+    public void discarded(T element);
+
+}
@@ -18,29 +18,358 @@ package de.slub.util.concurrent;
 
 import de.slub.util.Predicate;
 
-import java.util.LinkedList;
-import java.util.concurrent.DelayQueue;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class UniquePredicateDelayQueue<T extends Delayed> extends DelayQueue<T> {
+/**
+ * A delay queue that holds every element only once. Offering an element that equals a
+ * queued element replaces the queued one. Elements have to pass all predicates to be queued.
+ * <p/>
+ * Elements are kept in a binary heap ordered by delay. A hash index maps each element to
+ * its heap slot, so lookups are O(1) and replacing or removing an element is O(log n).
+ * <p/>
+ * If a {@link Coalescer} is set, an offered element is merged with the latest queued element
+ * of the same coalescing key first, and queued elements it supersedes are removed.
+ */
+public class UniquePredicateDelayQueue<T extends Delayed> extends AbstractQueue<T> implements BlockingQueue<T> {
 
+    private static final int INITIAL_CAPACITY = 64;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final HashMap<T, Integer> slots = new HashMap<>();
+    private final HashMap<Object, T> coalescable = new HashMap<>();
+    private final HashMap<Object, List<T>> groups = new HashMap<>();
+    private Coalescer<T> coalescer;
     private LinkedList<Predicate<T>> predicates = new LinkedList<>();
+    private LinkedList<QueueListener<T>> listeners = new LinkedList<>();
+    private Object[] heap = new Object[INITIAL_CAPACITY];
+    private int size = 0;
+    private Thread leader = null;
 
     public UniquePredicateDelayQueue addPredicate(Predicate<T> predicate) {
         predicates.add(predicate);
         return this;
     }
 
+    public UniquePredicateDelayQueue coalescer(Coalescer<T> coalescer) {
+        this.coalescer = coalescer;
+        return this;
+    }
+
+    public UniquePredicateDelayQueue addListener(QueueListener<T> listener) {
+        listeners.add(listener);
+        return this;
+    }
+
     @Override
     public boolean offer(T e) {
-        if (predicates.isEmpty() || evaluatePredicates(e)) {
-            if (contains(e)) {
-                remove(e);
-            }
-            return super.offer(e);
-        } else {
+        if (e == null) throw new NullPointerException();
+        if (!predicates.isEmpty() && !evaluatePredicates(e)) {
             return false;
         }
+        lock.lock();
+        try {
+            Object key = (coalescer == null) ? null : coalescer.key(e);
+            if (key != null) {
+                T queued = coalescable.get(key);
+                if (queued != null) {
+                    T merged = coalescer.coalesce(queued, e);
+                    if (merged == queued) {
+                        return true;
+                    }
+                    if (merged != null) {
+                        fireDiscarded(removeAt(slots.get(queued)));
+                        e = merged;
+                    }
+                }
+            }
+            Integer slot = slots.get(e);
+            if (slot != null) {
+                fireDiscarded(removeAt(slot));
+            }
+            removeSupersededBy(e);
+            insert(e);
+            if (key != null) {
+                coalescable.put(key, e);
+            }
+            fireEnqueued(e);
+            if (heap[0] == e) {
+                leader = null;
+                available.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean add(T e) {
+        return offer(e);
+    }
+
+    @Override
+    public void put(T e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(T e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public T poll() {
+        lock.lock();
+        try {
+            T first = first();
+            if (first == null || first.getDelay(TimeUnit.NANOSECONDS) > 0) {
+                return null;
+            }
+            return removeAt(0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                T first = first();
+                if (first == null) {
+                    available.await();
+                } else {
+                    long delay = first.getDelay(TimeUnit.NANOSECONDS);
+                    if (delay <= 0) {
+                        return removeAt(0);
+                    }
+                    first = null; // don't retain reference while waiting
+                    if (leader != null) {
+                        available.await();
+                    } else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            available.awaitNanos(delay);
+                        } finally {
+                            if (leader == thisThread) leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && size > 0) available.signal();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                T first = first();
+                if (first == null) {
+                    if (nanos <= 0) return null;
+                    nanos = available.awaitNanos(nanos);
+                } else {
+                    long delay = first.getDelay(TimeUnit.NANOSECONDS);
+                    if (delay <= 0) {
+                        return removeAt(0);
+                    }
+                    if (nanos <= 0) return null;
+                    first = null; // don't retain reference while waiting
+                    if (nanos < delay || leader != null) {
+                        nanos = available.awaitNanos(nanos);
+                    } else {
+                        Thread thisThread = Thread.currentThread();
+                        leader = thisThread;
+                        try {
+                            long timeLeft = available.awaitNanos(delay);
+                            nanos -= delay - timeLeft;
+                        } finally {
+                            if (leader == thisThread) leader = null;
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (leader == null && size > 0) available.signal();
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T peek() {
+        lock.lock();
+        try {
+            return first();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) return false;
+        lock.lock();
+        try {
+            return slots.containsKey(o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) return false;
+        lock.lock();
+        try {
+            Integer slot = slots.get(o);
+            if (slot == null) {
+                return false;
+            }
+            fireDiscarded(removeAt(slot));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the queued element that the given element would replace or be
+     * coalesced with when offered, or null if there is none.
+     */
+    public T removeMatch(T e) {
+        lock.lock();
+        try {
+            Object key = (coalescer == null) ? null : coalescer.key(e);
+            T queued = (key == null) ? null : coalescable.get(key);
+            Integer slot = slots.get((queued == null) ? e : queued);
+            if (slot == null) {
+                return null;
+            }
+            T removed = removeAt(slot);
+            fireDiscarded(removed);
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the queued elements the given element supersedes according to the coalescer.
+     * Only the elements of the group of the given element are looked at.
+     */
+    public void removeSupersededBy(T e) {
+        if (coalescer == null || !coalescer.sweeps(e)) {
+            return;
+        }
+        Object group = coalescer.group(e);
+        if (group == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            List<T> members = groups.get(group);
+            if (members == null) {
+                return;
+            }
+            List<T> superseded = new ArrayList<>();
+            for (T queued : members) {
+                if (queued != e && coalescer.supersedes(e, queued)) {
+                    superseded.add(queued);
+                }
+            }
+            for (T queued : superseded) {
+                fireDiscarded(removeAt(slots.get(queued)));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            if (!listeners.isEmpty()) {
+                for (int i = 0; i < size; i++) fireDiscarded(elementAt(i));
+            }
+            Arrays.fill(heap, 0, size, null);
+            slots.clear();
+            coalescable.clear();
+            groups.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements) {
+                T first = first();
+                if (first == null || first.getDelay(TimeUnit.NANOSECONDS) > 0) {
+                    break;
+                }
+                c.add(removeAt(0));
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Object[] toArray() {
+        lock.lock();
+        try {
+            return Arrays.copyOf(heap, size);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued elements in no particular order.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new SnapshotIterator(toArray());
     }
 
     private boolean evaluatePredicates(T e) {
@@ -50,4 +379,155 @@ public class UniquePredicateDelayQueue<T extends Delayed> extends DelayQueue<T>
         return true;
     }
 
+    private void fireEnqueued(T e) {
+        for (QueueListener<T> listener : listeners) listener.enqueued(e);
+    }
+
+    private void fireDiscarded(T e) {
+        for (QueueListener<T> listener : listeners) listener.discarded(e);
+    }
+
+    @SuppressWarnings("unchecked")
+    private T first() {
+        return (T) heap[0];
+    }
+
+    @SuppressWarnings("unchecked")
+    private T elementAt(int i) {
+        return (T) heap[i];
+    }
+
+    private void insert(T e) {
+        if (size >= heap.length) {
+            heap = Arrays.copyOf(heap, heap.length + (heap.length >> 1));
+        }
+        siftUp(size++, e);
+        Object group = (coalescer == null) ? null : coalescer.group(e);
+        if (group != null) {
+            List<T> members = groups.get(group);
+            if (members == null) {
+                members = new ArrayList<>(1);
+                groups.put(group, members);
+            }
+            members.add(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T removeAt(int i) {
+        T removed = (T) heap[i];
+        slots.remove(removed);
+        if (coalescer != null) {
+            Object key = coalescer.key(removed);
+            if (key != null && coalescable.get(key) == removed) {
+                coalescable.remove(key);
+            }
+            Object group = coalescer.group(removed);
+            List<T> members = (group == null) ? null : groups.get(group);
+            if (members != null) {
+                removeIdentical(members, removed);
+                if (members.isEmpty()) {
+                    groups.remove(group);
+                }
+            }
+        }
+        int last = --size;
+        if (last == i) {
+            heap[i] = null;
+        } else {
+            T moved = (T) heap[last];
+            heap[last] = null;
+            siftDown(i, moved);
+            if (heap[i] == moved) {
+                siftUp(i, moved);
+            }
+        }
+        return removed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void siftUp(int k, T e) {
+        while (k > 0) {
+            int parent = (k - 1) >>> 1;
+            T p = (T) heap[parent];
+            if (e.compareTo(p) >= 0) break;
+            place(k, p);
+            k = parent;
+        }
+        place(k, e);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void siftDown(int k, T e) {
+        int half = size >>> 1;
+        while (k < half) {
+            int child = (k << 1) + 1;
+            T c = (T) heap[child];
+            int right = child + 1;
+            if (right < size && c.compareTo((T) heap[right]) > 0) {
+                c = (T) heap[child = right];
+            }
+            if (e.compareTo(c) <= 0) break;
+            place(k, c);
+            k = child;
+        }
+        place(k, e);
+    }
+
+    private void place(int k, T e) {
+        heap[k] = e;
+        slots.put(e, k);
+    }
+
+    private static <T> void removeIdentical(List<T> list, T e) {
+        for (Iterator<T> iterator = list.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() == e) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+
+    private void removeIdentical(Object o) {
+        lock.lock();
+        try {
+            Integer slot = slots.get(o);
+            if (slot != null && heap[slot] == o) {
+                fireDiscarded(removeAt(slot));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class SnapshotIterator implements Iterator<T> {
+        private final Object[] array;
+        private int cursor = 0;
+        private int lastRet = -1;
+
+        SnapshotIterator(Object[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < array.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (cursor >= array.length) throw new NoSuchElementException();
+            lastRet = cursor;
+            return (T) array[cursor++];
+        }
+
+        @Override
+        public void remove() {
+            if (lastRet < 0) throw new IllegalStateException();
+            removeIdentical(array[lastRet]);
+            lastRet = -1;
+        }
+    }
+
 }
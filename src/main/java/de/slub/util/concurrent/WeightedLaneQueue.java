@@ -0,0 +1,354 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.util.concurrent;
+
+import de.slub.util.Predicate;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A delay queue made of several lanes, each backed by its own {@link UniquePredicateDelayQueue}.
+ * <p/>
+ * Offered elements go to the first lane whose selector accepts them, or to the last lane.
+ * If another lane holds an element the offered one would replace or be coalesced with, both
+ * end up in the lane with the higher priority, and a {@link LaneSelector} of that lane is told
+ * to assign both to it. Expired elements are taken from the lanes by
+ * smooth weighted round-robin, so every lane gets a share of the consumers proportional to its
+ * weight while lanes without expired elements leave their share to the others.
+ */
+public class WeightedLaneQueue<T extends Delayed> extends AbstractQueue<T> implements BlockingQueue<T>, ToXContent {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Lane> lanes = new ArrayList<>();
+
+    /**
+     * Adds a lane with lower priority than all lanes added before.
+     *
+     * @param selector Decides which elements belong to the lane, may be null for the last lane
+     */
+    public WeightedLaneQueue<T> addLane(String name, int weight, Predicate<T> selector, UniquePredicateDelayQueue<T> queue) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Lane weight has to be positive: " + name);
+        }
+        lanes.add(new Lane(name, weight, selector, queue));
+        return this;
+    }
+
+    @Override
+    public boolean offer(T e) {
+        if (e == null) throw new NullPointerException();
+        lock.lock();
+        try {
+            int target = laneIndex(e);
+            T moved = null;
+            for (int i = 0; i < lanes.size(); i++) {
+                if (i == target) continue;
+                lanes.get(i).queue.removeSupersededBy(e);
+                T match = lanes.get(i).queue.removeMatch(e);
+                if (match != null) {
+                    moved = match;
+                    target = Math.min(target, i);
+                }
+            }
+            Lane lane = lanes.get(target);
+            if (moved != null) {
+                lane.assign(moved);
+                lane.queue.offer(moved);
+            }
+            lane.assign(e);
+            boolean added = lane.queue.offer(e);
+            changed.signalAll();
+            return added;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean add(T e) {
+        return offer(e);
+    }
+
+    @Override
+    public void put(T e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(T e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public T poll() {
+        lock.lock();
+        try {
+            return pollExpired();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T take() throws InterruptedException {
+        return poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            for (; ; ) {
+                T e = pollExpired();
+                if (e != null) return e;
+                if (nanos <= 0) return null;
+                long wait = Math.min(nanos, nextDelay());
+                nanos -= wait - changed.awaitNanos(wait);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public T peek() {
+        lock.lock();
+        try {
+            T first = null;
+            for (Lane lane : lanes) {
+                T head = lane.queue.peek();
+                if (head != null && (first == null || head.compareTo(first) < 0)) {
+                    first = head;
+                }
+            }
+            return first;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Lane lane : lanes) size += lane.queue.size();
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        for (Lane lane : lanes) {
+            if (lane.queue.contains(o)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                if (lane.queue.remove(o)) return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) lane.queue.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == null) throw new NullPointerException();
+        if (c == this) throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int n = 0;
+            while (n < maxElements) {
+                T e = pollExpired();
+                if (e == null) break;
+                c.add(e);
+                ++n;
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued elements of all lanes.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        final List<T> snapshot = new ArrayList<>();
+        for (Lane lane : lanes) {
+            for (T e : lane.queue) snapshot.add(e);
+        }
+        final Iterator<T> it = snapshot.iterator();
+        return new Iterator<T>() {
+            private T last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return last = it.next();
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                WeightedLaneQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        lock.lock();
+        try {
+            for (Lane lane : lanes) {
+                T head = lane.queue.peek();
+                long oldestWait = (head == null) ? 0 : Math.max(0, -head.getDelay(TimeUnit.MILLISECONDS));
+                builder.startObject(lane.name)
+                        .field("weight", lane.weight)
+                        .field("depth", lane.queue.size())
+                        .field("dequeued", lane.dequeued)
+                        .field("wait_time_avg_ms", (lane.dequeued == 0) ? 0 : lane.totalWait / lane.dequeued)
+                        .field("wait_time_max_ms", lane.maxWait)
+                        .field("oldest_wait_ms", oldestWait)
+                        .endObject();
+            }
+            return builder;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int laneIndex(T e) {
+        int last = lanes.size() - 1;
+        for (int i = 0; i < last; i++) {
+            Predicate<T> selector = lanes.get(i).selector;
+            if (selector != null && selector.evaluate(e)) return i;
+        }
+        return last;
+    }
+
+    private T pollExpired() {
+        Lane next = null;
+        int totalWeight = 0;
+        for (Lane lane : lanes) {
+            if (lane.hasExpired()) {
+                lane.current += lane.weight;
+                totalWeight += lane.weight;
+                if (next == null || lane.current > next.current) {
+                    next = lane;
+                }
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        next.current -= totalWeight;
+        T e = next.queue.poll();
+        if (e != null) {
+            next.dequeued(e);
+        }
+        return e;
+    }
+
+    private long nextDelay() {
+        long delay = Long.MAX_VALUE;
+        for (Lane lane : lanes) {
+            T head = lane.queue.peek();
+            if (head != null) {
+                delay = Math.min(delay, head.getDelay(TimeUnit.NANOSECONDS));
+            }
+        }
+        return Math.max(0, delay);
+    }
+
+    private class Lane {
+        final String name;
+        final int weight;
+        final Predicate<T> selector;
+        final UniquePredicateDelayQueue<T> queue;
+        int current = 0;
+        long dequeued = 0;
+        long totalWait = 0;
+        long maxWait = 0;
+
+        Lane(String name, int weight, Predicate<T> selector, UniquePredicateDelayQueue<T> queue) {
+            this.name = name;
+            this.weight = weight;
+            this.selector = selector;
+            this.queue = queue;
+        }
+
+        void assign(T e) {
+            if (selector instanceof LaneSelector && !selector.evaluate(e)) {
+                ((LaneSelector<T>) selector).assign(e);
+            }
+        }
+
+        boolean hasExpired() {
+            T head = queue.peek();
+            return head != null && head.getDelay(TimeUnit.NANOSECONDS) <= 0;
+        }
+
+        void dequeued(T e) {
+            long wait = Math.max(0, -e.getDelay(TimeUnit.MILLISECONDS));
+            dequeued++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora;
+
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.yourmediashelf.fedora.client.FedoraCredentials;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledFedoraClientTest {
+
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private final Set<String> acceptEncodings = Collections.synchronizedSet(new HashSet<String>());
+    private HttpServer server;
+    private PooledFedoraClient fedoraClient;
+
+    @Test
+    public void reusesConnectionForSequentialRequests() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals("pong", fedoraClient.resource().path("ping").get(String.class));
+        }
+
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void requestsGzipEncoding() {
+        fedoraClient.resource().path("ping").get(String.class);
+
+        assertTrue(acceptEncodings.contains("gzip"));
+    }
+
+    @Test
+    public void reportsPoolUtilization() throws Exception {
+        fedoraClient.resource().path("ping").get(String.class);
+
+        XContentBuilder builder = jsonBuilder().startObject();
+        fedoraClient.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String json = builder.endObject().string();
+
+        assertTrue(json.contains("\"max\":4,\"leased\":0,\"available\":1"));
+    }
+
+    @Test
+    public void failsWhenNoConnectionBecomesAvailable() {
+        PooledFedoraClient singleConnectionClient = new PooledFedoraClient(
+                credentials(),
+                1,
+                PooledFedoraClient.DEFAULT_CONNECT_TIMEOUT,
+                PooledFedoraClient.DEFAULT_READ_TIMEOUT,
+                TimeValue.timeValueMillis(200),
+                true);
+        try {
+            // not consumed, keeps the only connection leased
+            ClientResponse leased = singleConnectionClient.resource().path("ping").get(ClientResponse.class);
+            try {
+                singleConnectionClient.resource().path("ping").get(String.class);
+                fail("Expected the request to time out waiting for a connection");
+            } catch (ClientHandlerException e) {
+                assertTrue(e.getCause() instanceof ConnectionPoolTimeoutException);
+            } finally {
+                leased.close();
+            }
+        } finally {
+            singleConnectionClient.close();
+        }
+    }
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fedora/ping", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                if (acceptEncoding != null) acceptEncodings.add(acceptEncoding);
+                byte[] body = "pong".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+
+        fedoraClient = new PooledFedoraClient(
+                credentials(),
+                4,
+                PooledFedoraClient.DEFAULT_CONNECT_TIMEOUT,
+                PooledFedoraClient.DEFAULT_READ_TIMEOUT,
+                PooledFedoraClient.DEFAULT_CONNECTION_REQUEST_TIMEOUT,
+                true);
+    }
+
+    @After
+    public void teardown() {
+        fedoraClient.close();
+        server.stop(0);
+    }
+
+    private FedoraCredentials credentials() {
+        try {
+            return new FedoraCredentials("http://localhost:" + server.getAddress().getPort() + "/fedora", "fedoraAdmin", "fedoraAdmin");
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.jms;
+
+import de.slub.index.IndexJob;
+import de.slub.index.IndexJobJournal;
+import de.slub.index.ObjectIndexJob;
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.command.ActiveMQQueue;
+import org.apache.activemq.command.ActiveMQTopic;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jms.*;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class APIMConsumerTest {
+
+    private static final String BROKER_URL = "tcp://localhost:" + freePort();
+    private static final ESLogger esLogger = ESLoggerFactory.getLogger("test-logger");
+
+    private BrokerService broker;
+    private IndexJobJournal journal;
+    private final ConcurrentLinkedQueue<IndexJob> indexJobQueue = new ConcurrentLinkedQueue<>();
+
+    @Test
+    public void concurrentConsumersHandleConsumerQueue() throws Exception {
+        APIMConsumer consumer = consumerBuilder()
+                .consumerQueue("Consumer.river.VirtualTopic.fedora.apim.update")
+                .consumers(3)
+                .build();
+        Thread consumerThread = start(consumer);
+
+        sendIngestMessages(queue("Consumer.river.VirtualTopic.fedora.apim.update"), 0, 30);
+        waitForJobs(30);
+
+        stop(consumer, consumerThread);
+
+        assertEquals(30, indexJobQueue.size());
+        for (int i = 0; i < 30; i++) {
+            assertTrue(indexJobQueue.contains(new ObjectIndexJob(IndexJob.Type.CREATE, "test-rest:" + i)));
+        }
+        assertFalse(consumerThread.isAlive());
+    }
+
+    @Test
+    public void concurrentConsumersKeepOrderOfMessagesForSamePid() throws Exception {
+        APIMConsumer consumer = consumerBuilder()
+                .consumerQueue("Consumer.river.VirtualTopic.fedora.apim.update")
+                .consumers(3)
+                .build();
+        Thread consumerThread = start(consumer);
+
+        String text = IOUtils.toString(getClass().getResourceAsStream("/jms/ingest.xml"));
+        Connection connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(queue("Consumer.river.VirtualTopic.fedora.apim.update"));
+            for (int i = 0; i < 10; i++) {
+                for (int pid = 0; pid < 5; pid++) {
+                    TextMessage message = session.createTextMessage(text);
+                    message.setStringProperty("pid", "test-rest:" + pid);
+                    message.setStringProperty("methodName", (i % 2 == 0) ? "ingest" : "purgeObject");
+                    producer.send(message);
+                }
+            }
+        } finally {
+            connection.close();
+        }
+        waitForJobs(50);
+
+        stop(consumer, consumerThread);
+
+        assertEquals(50, indexJobQueue.size());
+        int[] received = new int[5];
+        for (IndexJob job : indexJobQueue) {
+            int pid = Integer.parseInt(job.pid().substring("test-rest:".length()));
+            IndexJob.Type expected = (received[pid]++ % 2 == 0) ? IndexJob.Type.CREATE : IndexJob.Type.DELETE;
+            assertEquals(expected, job.type());
+        }
+    }
+
+    @Test
+    public void durableSubscriptionReceivesMessagesSentWhileDisconnected() throws Exception {
+        APIMConsumer consumer = consumerBuilder().durable(true).journal(journal).ackBatchSize(5).build();
+        Thread consumerThread = start(consumer);
+        sendIngestMessages(topic("fedora.apim.update"), 0, 12);
+        waitForJobs(12);
+        stop(consumer, consumerThread);
+
+        sendIngestMessages(topic("fedora.apim.update"), 12, 8);
+
+        indexJobQueue.clear();
+        consumer = consumerBuilder().durable(true).journal(journal).ackBatchSize(5).build();
+        consumerThread = start(consumer);
+        waitForJobs(8);
+        stop(consumer, consumerThread);
+
+        // messages acknowledged by the first consumer are not redelivered
+        assertEquals(8, indexJobQueue.size());
+        for (int i = 12; i < 20; i++) {
+            assertTrue(indexJobQueue.contains(new ObjectIndexJob(IndexJob.Type.CREATE, "test-rest:" + i)));
+        }
+    }
+
+    @Test(expected = java.lang.IllegalStateException.class)
+    public void refusesDurableSubscriptionWithoutJournal() throws Exception {
+        consumerBuilder().durable(true).build();
+    }
+
+    @Test
+    public void reconnectsAfterBrokerRestart() throws Exception {
+        APIMConsumer consumer = consumerBuilder()
+                .consumerQueue("Consumer.river.VirtualTopic.fedora.apim.update")
+                .reconnectDelay(TimeValue.timeValueMillis(100))
+                .maxReconnectDelay(TimeValue.timeValueMillis(400))
+                .build();
+        Thread consumerThread = start(consumer);
+        assertEquals(APIMConsumer.Health.CONNECTED, consumer.health());
+
+        stopBroker();
+        waitForHealth(consumer, APIMConsumer.Health.RECONNECTING);
+        startBroker();
+        waitForHealth(consumer, APIMConsumer.Health.CONNECTED);
+
+        sendIngestMessages(queue("Consumer.river.VirtualTopic.fedora.apim.update"), 0, 5);
+        waitForJobs(5);
+        stop(consumer, consumerThread);
+
+        assertEquals(5, indexJobQueue.size());
+        assertEquals(APIMConsumer.Health.STOPPED, consumer.health());
+    }
+
+    @Before
+    public void startBroker() throws Exception {
+        broker = new BrokerService();
+        broker.setBrokerName("apim-test");
+        broker.setPersistent(false);
+        broker.setUseJmx(false);
+        broker.addConnector(BROKER_URL);
+        broker.start();
+    }
+
+    @After
+    public void stopBroker() throws Exception {
+        broker.stop();
+    }
+
+    @Before
+    public void openJournal() throws Exception {
+        File directory = new File("target/apim-journal-test");
+        FileUtils.deleteDirectory(directory);
+        journal = new IndexJobJournal(directory, esLogger);
+        journal.open();
+    }
+
+    @After
+    public void closeJournal() throws Exception {
+        journal.close();
+        FileUtils.deleteDirectory(new File("target/apim-journal-test"));
+    }
+
+    private static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new java.lang.IllegalStateException(e);
+        }
+    }
+
+    private APIMConsumerBuilder consumerBuilder() throws URISyntaxException {
+        return new APIMConsumerBuilder()
+                .brokerUrl(new URI(BROKER_URL))
+                .topicFilter("fedora.apim.update")
+                .clientId("apim-test-client")
+                .subscriptionName("apim-test")
+                .ackInterval(TimeValue.timeValueMillis(100))
+                .indexJobQueue(indexJobQueue)
+                .logger(esLogger);
+    }
+
+    private Thread start(APIMConsumer consumer) throws InterruptedException {
+        Thread consumerThread = new Thread(consumer);
+        consumerThread.start();
+        // give the consumer time to subscribe
+        Thread.sleep(500);
+        return consumerThread;
+    }
+
+    private void stop(APIMConsumer consumer, Thread consumerThread) throws InterruptedException {
+        consumer.terminate();
+        consumerThread.join(5000);
+    }
+
+    private Destination queue(String name) {
+        return new ActiveMQQueue(name);
+    }
+
+    private Destination topic(String name) {
+        return new ActiveMQTopic(name);
+    }
+
+    private void sendIngestMessages(Destination destination, int first, int count) throws Exception {
+        String text = IOUtils.toString(getClass().getResourceAsStream("/jms/ingest.xml"));
+        Connection connection = new ActiveMQConnectionFactory(BROKER_URL).createConnection();
+        try {
+            Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            MessageProducer producer = session.createProducer(destination);
+            producer.setDeliveryMode(DeliveryMode.PERSISTENT);
+            for (int i = first; i < first + count; i++) {
+                TextMessage message = session.createTextMessage(text);
+                message.setStringProperty("pid", "test-rest:" + i);
+                message.setStringProperty("methodName", "ingest");
+                producer.send(message);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private void waitForHealth(APIMConsumer consumer, APIMConsumer.Health health) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (consumer.health() != health && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(health, consumer.health());
+    }
+
+    private void waitForJobs(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (indexJobQueue.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.jms;
+
+import de.slub.index.DatastreamIndexJob;
+import de.slub.index.IndexJob;
+import de.slub.index.ObjectIndexJob;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static de.slub.index.IndexJob.Type.*;
+
+/**
+ * Measures mapping of the API-M sample messages in <code>src/test/resources/jms</code>.
+ * The <code>dom</code> implementation is the former DOM/XPath based variant.
+ * Run with <code>-prof gc</code> to compare the bytes allocated per message
+ * (<code>gc.alloc.rate.norm</code>).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageMapperBenchmark {
+
+    private static final String[] METHODS = {
+            "addDatastream", "getObjectXML", "ingest", "modifyDatastreamByValue",
+            "modifyObject", "purgeDatastream", "purgeObject"};
+
+    private static final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    private static final XPath xPath = XPathFactory.newInstance().newXPath();
+
+    private String[] texts;
+
+    @Setup(Level.Trial)
+    public void loadMessages() throws Exception {
+        texts = new String[METHODS.length];
+        for (int i = 0; i < METHODS.length; i++) {
+            texts[i] = IOUtils.toString(getClass().getResourceAsStream("/jms/" + METHODS[i] + ".xml"), "UTF-8");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public int stax() throws Exception {
+        int jobs = 0;
+        for (int i = 0; i < METHODS.length; i++) {
+            jobs += MessageMapper.map("test-rest:1", METHODS[i], texts[i]).size();
+        }
+        return jobs;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(7)
+    public int dom() throws Exception {
+        int jobs = 0;
+        for (int i = 0; i < METHODS.length; i++) {
+            jobs += domMap("test-rest:1", METHODS[i], texts[i]).size();
+        }
+        return jobs;
+    }
+
+    private static List<IndexJob> domMap(String pid, String methodName, String text) throws Exception {
+        ArrayList<IndexJob> indexJobs = new ArrayList<>();
+        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        Document document = documentBuilder.parse(IOUtils.toInputStream(text));
+        String dsid = (String) xPath.evaluate(
+                "/entry/category[@scheme='fedora-types:dsID']/@term", document, XPathConstants.STRING);
+        switch (methodName) {
+            case "ingest":
+                indexJobs.add(new ObjectIndexJob(CREATE, pid, 1, TimeUnit.SECONDS));
+                break;
+            case "addDatastream":
+                indexJobs.add(new DatastreamIndexJob(CREATE, pid, dsid, 1, TimeUnit.SECONDS));
+                break;
+            case "purgeObject":
+                indexJobs.add(new ObjectIndexJob(DELETE, pid));
+                break;
+            case "purgeDatastream":
+                indexJobs.add(new DatastreamIndexJob(DELETE, pid, dsid));
+                break;
+            case "modifyObject":
+                indexJobs.add(new ObjectIndexJob(UPDATE, pid, 5, TimeUnit.SECONDS));
+                break;
+            case "modifyDatastreamByReference":
+            case "modifyDatastreamByValue":
+            case "setDatastreamState":
+                indexJobs.add(new ObjectIndexJob(UPDATE, pid, dsid, 1, TimeUnit.SECONDS));
+                indexJobs.add(new DatastreamIndexJob(UPDATE, pid, dsid, 5, TimeUnit.SECONDS));
+                break;
+        }
+        return indexJobs;
+    }
+
+}
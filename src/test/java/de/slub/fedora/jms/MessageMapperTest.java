@@ -20,13 +20,21 @@ import de.slub.index.DatastreamIndexJob;
 import de.slub.index.IndexJob;
 import de.slub.index.ObjectIndexJob;
 import org.apache.commons.io.IOUtils;
+import org.elasticsearch.common.unit.TimeValue;
 import org.junit.Test;
 
 import javax.jms.TextMessage;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -141,6 +149,61 @@ public class MessageMapperTest {
                 ij);
     }
 
+    @Test
+    public void mapsObjectMessagesWithoutReadingTheEntry() throws Exception {
+        List<IndexJob> jobs = MessageMapper.map("test-rest:1", "modifyObject", null);
+
+        assertEquals(new ObjectIndexJob(IndexJob.Type.UPDATE, "test-rest:1"), jobs.get(0));
+    }
+
+    @Test
+    public void delaysJobsByQuietPeriodOfMethod() throws Exception {
+        DebouncePolicy debouncePolicy = new DebouncePolicy(
+                Collections.singletonMap("modifyObject", TimeValue.timeValueSeconds(10)),
+                TimeValue.timeValueSeconds(30));
+
+        long before = System.currentTimeMillis();
+        IndexJob job = MessageMapper.map("test-rest:1", "modifyObject", null, debouncePolicy).get(0);
+
+        assertTrue(job.deadline() >= before + 10000);
+        assertEquals(job.deadline() + 20000, job.maxDeadline());
+    }
+
+    @Test
+    public void limitsQuietPeriodToMaxWait() throws Exception {
+        DebouncePolicy debouncePolicy = new DebouncePolicy(
+                Collections.<String, TimeValue>emptyMap(), TimeValue.timeValueSeconds(2));
+
+        IndexJob job = MessageMapper.map("test-rest:1", "modifyObject", null, debouncePolicy).get(0);
+
+        assertEquals(job.deadline(), job.maxDeadline());
+    }
+
+    @Test
+    public void mapsMessagesConcurrently() throws Exception {
+        final String text = getContent("/jms/addDatastream.xml");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<IndexJob>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final String pid = "test-rest:" + i;
+                futures.add(executor.submit(new Callable<IndexJob>() {
+                    @Override
+                    public IndexJob call() throws Exception {
+                        return MessageMapper.map(pid, "addDatastream", text).get(0);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(
+                        new DatastreamIndexJob(IndexJob.Type.CREATE, "test-rest:" + i, "testAddDatastream"),
+                        futures.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     private IndexJob findFirstByClass(List<IndexJob> jobs, Class c) {
         for (IndexJob job : jobs) {
             if (c.isInstance(job)) return job;
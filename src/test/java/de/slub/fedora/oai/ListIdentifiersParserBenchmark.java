@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.oai;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.*;
+import java.io.ByteArrayInputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing of a ListIdentifiers page with many headers.
+ * The <code>dom</code> implementation is the former DOM/XPath based variant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx1g")
+public class ListIdentifiersParserBenchmark {
+
+    @Param({"10000", "50000"})
+    public int headers;
+
+    private byte[] page;
+    private ListIdentifiersParser parser;
+
+    @Setup(Level.Trial)
+    public void createPage() throws Exception {
+        StringBuilder sb = new StringBuilder()
+                .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+                .append("<OAI-PMH xmlns=\"http://www.openarchives.org/OAI/2.0/\">")
+                .append("<responseDate>2014-06-08T11:43:00Z</responseDate>")
+                .append("<request verb=\"ListIdentifiers\" metadataPrefix=\"oai_dc\">http://localhost:8080/fedora/oai</request>")
+                .append("<ListIdentifiers>");
+        for (int i = 0; i < headers; i++) {
+            sb.append("<header><identifier>oai:example.org:qucosa:").append(i).append("</identifier>")
+                    .append("<datestamp>2014-05-06T17:33:25Z</datestamp>")
+                    .append("<setSpec>doc-type:article</setSpec></header>");
+        }
+        sb.append("<resumptionToken expirationDate=\"2014-06-09T18:34:15Z\" completeListSize=\"1000000\" cursor=\"0\">")
+                .append("140225245500000</resumptionToken></ListIdentifiers></OAI-PMH>");
+        page = sb.toString().getBytes("UTF-8");
+        parser = new ListIdentifiersParser();
+    }
+
+    @Benchmark
+    public OaiRunResult stax(final Blackhole blackhole) throws Exception {
+        return parser.parse(new ByteArrayInputStream(page), new Date(), new ListIdentifiersParser.HeaderHandler() {
+            @Override
+            public void header(OaiHeader header) {
+                blackhole.consume(header);
+            }
+        });
+    }
+
+    @Benchmark
+    public OaiRunResult dom(Blackhole blackhole) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(page));
+        XPath xPath = XPathFactory.newInstance().newXPath();
+        NodeList nodes = (NodeList) xPath.compile("//header/identifier").evaluate(document, XPathConstants.NODESET);
+        for (int i = 0; i < nodes.getLength(); i++) {
+            blackhole.consume(nodes.item(i).getTextContent());
+        }
+        String resumptionToken = (String) xPath.compile("//resumptionToken").evaluate(document, XPathConstants.STRING);
+        String expirationDate = (String) xPath.compile("//resumptionToken/@expirationDate").evaluate(document, XPathConstants.STRING);
+        blackhole.consume(expirationDate);
+        return new OaiRunResult(new Date(), null, resumptionToken);
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.oai;
+
+import org.junit.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ListIdentifiersParserTest {
+
+    private final ListIdentifiersParser parser = new ListIdentifiersParser();
+    private final List<String> identifiers = new ArrayList<>();
+    private final List<OaiHeader> headers = new ArrayList<>();
+    private final ListIdentifiersParser.HeaderHandler handler = new ListIdentifiersParser.HeaderHandler() {
+        @Override
+        public void header(OaiHeader header) {
+            identifiers.add(header.getIdentifier());
+            headers.add(header);
+        }
+    };
+
+    @Test
+    public void passesHeaderIdentifiersToHandler() throws Exception {
+        Date now = new Date();
+        OaiRunResult result = parser.parse(
+                getClass().getResourceAsStream("/oai/listIdentifiers.xml"), now, handler);
+
+        assertEquals(1, identifiers.size());
+        assertEquals("oai:example.org:qucosa:1044", identifiers.get(0));
+        assertEquals(now, result.getTimestamp());
+        assertFalse(result.hasResumptionToken());
+        assertNull(result.getExpirationDate());
+    }
+
+    @Test
+    public void readsResumptionTokenAndExpirationDate() throws Exception {
+        OaiRunResult result = parser.parse(
+                getClass().getResourceAsStream("/oai/resumptionToken.xml"), new Date(), handler);
+
+        assertEquals("140225245500000", result.getResumptionToken());
+        assertEquals(DatatypeConverter.parseDateTime("2014-06-09T18:34:15Z").getTime(), result.getExpirationDate());
+    }
+
+    @Test
+    public void emptyResumptionTokenEndsList() throws Exception {
+        OaiRunResult result = parser.parse(
+                getClass().getResourceAsStream("/oai/emptyResumptionToken.xml"), new Date(), handler);
+
+        assertEquals(1, identifiers.size());
+        assertFalse(result.hasResumptionToken());
+    }
+
+    @Test
+    public void readsDatestampAndDeletedStatus() throws Exception {
+        String xml = "<OAI-PMH><ListIdentifiers>" +
+                "<header><identifier>oai:example.org:qucosa:1</identifier>" +
+                "<datestamp>2014-05-06T17:33:25Z</datestamp></header>" +
+                "<header status=\"deleted\"><identifier>oai:example.org:qucosa:2</identifier>" +
+                "<datestamp>2014-05-07T10:00:00Z</datestamp></header>" +
+                "</ListIdentifiers></OAI-PMH>";
+        parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Date(), handler);
+
+        assertEquals(2, headers.size());
+        assertEquals(DatatypeConverter.parseDateTime("2014-05-06T17:33:25Z").getTime(), headers.get(0).getDatestamp());
+        assertFalse(headers.get(0).isDeleted());
+        assertTrue(headers.get(1).isDeleted());
+    }
+
+    @Test
+    public void readsSetSpecs() throws Exception {
+        String xml = "<OAI-PMH><ListIdentifiers>" +
+                "<header><identifier>oai:example.org:qucosa:1</identifier>" +
+                "<setSpec>doc-type:article</setSpec><setSpec>open_access</setSpec></header>" +
+                "<header><identifier>oai:example.org:qucosa:2</identifier></header>" +
+                "</ListIdentifiers></OAI-PMH>";
+        parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Date(), handler);
+
+        assertEquals(2, headers.size());
+        assertEquals(Arrays.asList("doc-type:article", "open_access"), headers.get(0).getSetSpecs());
+        assertTrue(headers.get(1).getSetSpecs().isEmpty());
+    }
+
+    @Test
+    public void ignoresIdentifiersOutsideOfHeaders() throws Exception {
+        String xml = "<OAI-PMH><request identifier=\"x\">http://localhost/oai</request>" +
+                "<identifier>oai:example.org:nope</identifier>" +
+                "<ListIdentifiers><header><identifier> oai:example.org:qucosa:1 </identifier></header>" +
+                "</ListIdentifiers></OAI-PMH>";
+        parser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Date(), handler);
+
+        assertEquals(1, identifiers.size());
+        assertEquals("oai:example.org:qucosa:1", identifiers.get(0));
+    }
+
+}
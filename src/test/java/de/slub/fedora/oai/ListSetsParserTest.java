@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.fedora.oai;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ListSetsParserTest {
+
+    @Test
+    public void collectsSetSpecs() throws Exception {
+        List<String> setSpecs = new ArrayList<>();
+        String resumptionToken = new ListSetsParser().parse(
+                getClass().getResourceAsStream("/oai/listSets.xml"), setSpecs);
+
+        assertEquals(Arrays.asList("doc-type", "doc-type:article", "open_access"), setSpecs);
+        assertEquals("", resumptionToken);
+    }
+
+}
@@ -46,7 +46,11 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URL;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -56,6 +60,8 @@ public class OaiHarvesterTestIT {
     private static final String OAI_LIST_RECORDS_XML = "/oai/listIdentifiers.xml";
     private static final String OAI_RESUMPTION_TOKEN_XML = "/oai/resumptionToken.xml";
     private static final String OAI_EMPTY_RESUMPTION_TOKEN_XML = "/oai/emptyResumptionToken.xml";
+    private static final String OAI_LIST_SETS_XML = "/oai/listSets.xml";
+    private static final String OAI_DELETED_RECORD_XML = "/oai/deletedRecord.xml";
     @ClassRule
     public static InMemoryElasticsearchNode esNodeRule = new InMemoryElasticsearchNode();
     private EmbeddedHttpHandler embeddedHttpHandler;
@@ -73,6 +79,42 @@ public class OaiHarvesterTestIT {
                 new ObjectIndexJob(IndexJob.Type.CREATE, "qucosa:1044")));
     }
 
+    @Test
+    public void skipsObjectsIndexedAfterDatestamp() throws Exception {
+        esNode.client().prepareIndex("testindex", ObjectIndexJob.ES_TYPE_NAME, "qucosa:1044")
+                .setSource(jsonBuilder()
+                        .startObject()
+                        .field("PID", "qucosa:1044")
+                        .field("LAST_MODIFIED_DATE", "2014-05-06T17:33:25.512Z")
+                        .endObject())
+                .setRefresh(true)
+                .execute().actionGet();
+        OaiHarvester harvester = new OaiHarvesterBuilder()
+                .url(new URL("http://localhost:8000/fedora/oai"))
+                .esClient(esNode.client())
+                .interval(new TimeValue(1, TimeUnit.SECONDS))
+                .riverName(new RiverName("fedora", "_river"))
+                .indexName("testindex")
+                .indexJobQueue(jobQueue)
+                .logger(ESLoggerFactory.getLogger(this.getClass().getName())).build();
+
+        embeddedHttpHandler.resourcePath = OAI_LIST_RECORDS_XML;
+        runAndWait(harvester);
+
+        assertNotNull("OAI service should have been requested", embeddedHttpHandler.lastRequestUri);
+        assertFalse(jobQueue.contains(
+                new ObjectIndexJob(IndexJob.Type.CREATE, "qucosa:1044")));
+    }
+
+    @Test
+    public void createsDeleteJobForDeletedRecord() throws Exception {
+        embeddedHttpHandler.resourcePath = OAI_DELETED_RECORD_XML;
+        runAndWait(oaiHarvester);
+
+        assertTrue(jobQueue.contains(
+                new ObjectIndexJob(IndexJob.Type.DELETE, "qucosa:1045")));
+    }
+
     @Test
     public void writesLastrunTimestamp() throws Exception {
         embeddedHttpHandler.resourcePath = OAI_LIST_RECORDS_XML;
@@ -209,9 +251,115 @@ public class OaiHarvesterTestIT {
         runAndWait(oaiHarvester);
 
         assertFalse("Query parameter metadataPrefix is not allowed when using resumptionToken",
-                embeddedHttpHandler.lastRequestUri.getQuery().contains("metadataPrefix"));
+                embeddedHttpHandler.firstRequestUri.getQuery().contains("metadataPrefix"));
         assertTrue("Missing resumptionToken parameter in OAI query",
-                embeddedHttpHandler.lastRequestUri.getQuery().contains("resumptionToken=xyz1234"));
+                embeddedHttpHandler.firstRequestUri.getQuery().contains("resumptionToken=xyz1234"));
+    }
+
+    @Test
+    public void requestsNextPageWithoutDelay() throws Exception {
+        esNode.client().prepareIndex("_river", "fedora", "_last")
+                .setSource(jsonBuilder()
+                        .startObject()
+                        .field("resumption_token", "xyz1234")
+                        .endObject())
+                .execute().actionGet();
+
+        embeddedHttpHandler.resourcePath = OAI_RESUMPTION_TOKEN_XML;
+        runUntil(oaiHarvester, new Condition() {
+            @Override
+            public boolean holds() {
+                return embeddedHttpHandler.requestCount > 2;
+            }
+        });
+
+        assertTrue("Pages should be requested one after another without pause",
+                embeddedHttpHandler.requestCount > 2);
+    }
+
+    @Test
+    public void retriesRequestOnServerError() throws Exception {
+        Map<String, Object> settings = new HashMap<>();
+        settings.put("retry_interval", "10ms");
+        OaiHarvester harvester = new OaiHarvesterBuilder()
+                .settings(settings)
+                .url(new URL("http://localhost:8000/fedora/oai"))
+                .esClient(esNode.client())
+                .interval(new TimeValue(900, TimeUnit.MILLISECONDS))
+                .riverName(new RiverName("fedora", "_river"))
+                .indexJobQueue(jobQueue)
+                .logger(ESLoggerFactory.getLogger(this.getClass().getName())).build();
+
+        embeddedHttpHandler.serverErrors = 2;
+        embeddedHttpHandler.resourcePath = OAI_LIST_RECORDS_XML;
+        runAndWait(harvester);
+
+        assertTrue(jobQueue.contains(
+                new ObjectIndexJob(IndexJob.Type.CREATE, "qucosa:1044")));
+    }
+
+    @Test
+    public void backfillsTimeWindowsAndContinuesIncrementally() throws Exception {
+        Calendar from = Calendar.getInstance();
+        from.add(Calendar.DAY_OF_MONTH, -3);
+        from.add(Calendar.HOUR_OF_DAY, 1);
+        Map<String, Object> backfill = new HashMap<>();
+        backfill.put("from", DatatypeConverter.printDateTime(from));
+        backfill.put("window", "1d");
+        backfill.put("threads", 2);
+        OaiHarvester harvester = new OaiHarvesterBuilder()
+                .backfill(backfill)
+                .url(new URL("http://localhost:8000/fedora/oai"))
+                .esClient(esNode.client())
+                .interval(new TimeValue(100, TimeUnit.MILLISECONDS))
+                .riverName(new RiverName("fedora", "_river"))
+                .indexJobQueue(jobQueue)
+                .logger(ESLoggerFactory.getLogger(this.getClass().getName())).build();
+
+        embeddedHttpHandler.resourcePath = OAI_LIST_RECORDS_XML;
+        runAndWait(harvester);
+
+        int windowRequests = 0;
+        for (URI requestUri : embeddedHttpHandler.requestUris) {
+            if (requestUri.getQuery().contains("until=")) windowRequests++;
+        }
+        assertEquals(3, windowRequests);
+        assertTrue(jobQueue.contains(new ObjectIndexJob(IndexJob.Type.CREATE, "qucosa:1044")));
+        assertTrue(esNode.client().get(new GetRequest("_river", "fedora", "_last")).actionGet().isExists());
+        assertFalse(esNode.client().get(new GetRequest("_river", "fedora", "_last_window_0")).actionGet().isExists());
+        assertFalse(esNode.client().get(new GetRequest("_river", "fedora", "_last_backfill")).actionGet().isExists());
+    }
+
+    @Test
+    public void harvestsDiscoveredTopLevelSetsWithOwnCheckpoints() throws Exception {
+        OaiHarvester harvester = new OaiHarvesterBuilder()
+                .discoverSets(true)
+                .url(new URL("http://localhost:8000/fedora/oai"))
+                .esClient(esNode.client())
+                .interval(new TimeValue(100, TimeUnit.MILLISECONDS))
+                .riverName(new RiverName("fedora", "_river"))
+                .indexJobQueue(jobQueue)
+                .logger(ESLoggerFactory.getLogger(this.getClass().getName())).build();
+
+        embeddedHttpHandler.listSetsResourcePath = OAI_LIST_SETS_XML;
+        embeddedHttpHandler.resourcePath = OAI_LIST_RECORDS_XML;
+        runUntil(harvester, new Condition() {
+            @Override
+            public boolean holds() {
+                return checkpointExists("_last_set_doc-type") && checkpointExists("_last_set_open_access")
+                        && checkpointExists("_last");
+            }
+        });
+
+        boolean harvestedSubset = false;
+        for (URI requestUri : embeddedHttpHandler.requestUris) {
+            harvestedSubset |= requestUri.getQuery().contains("set=doc-type:article");
+        }
+        assertFalse("Subsets should not be harvested on their own", harvestedSubset);
+        assertTrue(checkpointExists("_last_set_doc-type"));
+        assertTrue(checkpointExists("_last_set_open_access"));
+        assertTrue("Objects of no set should be harvested", checkpointExists("_last_unassigned"));
+        assertTrue(jobQueue.contains(new ObjectIndexJob(IndexJob.Type.CREATE, "qucosa:1044")));
     }
 
     @Test
@@ -264,14 +412,42 @@ public class OaiHarvesterTestIT {
                 .logger(ESLoggerFactory.getLogger(this.getClass().getName())).build();
     }
 
+    /**
+     * Runs the harvester until it has written the last run document.
+     */
     private void runAndWait(TerminateableRunnable runnable) throws InterruptedException {
+        final long version = lastrunVersion();
+        runUntil(runnable, new Condition() {
+            @Override
+            public boolean holds() {
+                return lastrunVersion() > version;
+            }
+        });
+    }
+
+    private void runUntil(TerminateableRunnable runnable, Condition condition) throws InterruptedException {
         Thread thread = new Thread(runnable);
         thread.start();
-        TimeUnit.MILLISECONDS.sleep(1000);
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!condition.holds() && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
         runnable.terminate();
         thread.join();
     }
 
+    private long lastrunVersion() {
+        return esNode.client().get(new GetRequest("_river", "fedora", "_last")).actionGet().getVersion();
+    }
+
+    private boolean checkpointExists(String id) {
+        return esNode.client().get(new GetRequest("_river", "fedora", id)).actionGet().isExists();
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
     @Before
     public void setupHttpServer() throws IOException {
         httpServer = HttpServer.create(new InetSocketAddress(8000), 0);
@@ -302,17 +478,41 @@ public class OaiHarvesterTestIT {
         }
     }
 
+    @After
+    public void teardownIndex() {
+        try {
+            esNode.client().admin().indices().delete(new DeleteIndexRequest("testindex")).actionGet();
+        } catch (IndexMissingException e) {
+            // Index does not exist... Fine
+        }
+    }
+
     class EmbeddedHttpHandler implements HttpHandler {
 
+        public URI firstRequestUri;
         public URI lastRequestUri;
+        public final List<URI> requestUris = new CopyOnWriteArrayList<>();
         public String resourcePath;
+        public String listSetsResourcePath;
+        public volatile int requestCount;
+        public volatile int serverErrors;
 
         @Override
         public void handle(HttpExchange exchange) throws IOException {
+            if (firstRequestUri == null) firstRequestUri = exchange.getRequestURI();
             lastRequestUri = exchange.getRequestURI();
+            requestUris.add(lastRequestUri);
+            requestCount++;
+            if (serverErrors > 0) {
+                serverErrors--;
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
             exchange.sendResponseHeaders(200, 0);
+            boolean listSets = exchange.getRequestURI().getQuery().contains("verb=ListSets");
             IOUtils.copy(
-                    this.getClass().getResourceAsStream(resourcePath),
+                    this.getClass().getResourceAsStream(listSets ? listSetsResourcePath : resourcePath),
                     exchange.getResponseBody());
             exchange.getResponseBody().close();
         }
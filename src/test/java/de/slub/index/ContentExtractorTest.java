@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.*;
+
+public class ContentExtractorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ContentExtractor extractor;
+
+    @Test
+    public void extractsTextOfContent() throws Exception {
+        String text = join(extract(extractor, getClass().getResourceAsStream("/response/datastreamContent.xml")));
+
+        assertFalse(text.trim().isEmpty());
+    }
+
+    @Test
+    public void splitsLongTextIntoChunksAtWhitespace() throws Exception {
+        String content = repeat("lorem ipsum ", 20000);
+        List<String> chunks = extract(extractor, new ByteArrayInputStream(content.getBytes("UTF-8")));
+
+        assertTrue(chunks.size() > 1);
+        for (String chunk : chunks.subList(0, chunks.size() - 1)) {
+            assertTrue(Character.isWhitespace(chunk.charAt(chunk.length() - 1)));
+        }
+        assertEquals(content.trim(), join(chunks).trim());
+    }
+
+    @Test
+    public void truncatesTextAtMaximumNumberOfCharacters() throws Exception {
+        ContentExtractor limited = new ContentExtractor(1, 1, TimeValue.timeValueMillis(250), 100, Executors.defaultThreadFactory());
+        try {
+            XContentBuilder builder = jsonBuilder().startObject();
+            boolean truncated = limited.extractText(null,
+                    new ByteArrayInputStream(repeat("lorem ipsum ", 100).getBytes("UTF-8")), builder, "_content");
+            builder.endObject();
+
+            assertTrue(truncated);
+            assertEquals(100, join(contentOf(builder)).length());
+        } finally {
+            limited.shutdown();
+        }
+    }
+
+    @Test
+    public void readsCachedTextWithoutNeedingContent() throws Exception {
+        ExtractionCache cache = new ExtractionCache(folder.getRoot(), ExtractionCache.DEFAULT_MAX_SIZE,
+                ESLoggerFactory.getLogger("test-logger"));
+        cache.open();
+        extractor.cache(cache);
+
+        ContentExtractor.Source first = extractor.source("text/plain", "checksum:MD5:abc");
+        assertTrue(first.needsContent());
+        String firstText = join(extractCached(first.content(new ByteArrayInputStream("lorem ipsum".getBytes("UTF-8")))));
+        ContentExtractor.Source second = extractor.source("text/plain", "checksum:MD5:abc");
+        assertFalse(second.needsContent());
+        String secondText = join(extractCached(second));
+
+        assertEquals(firstText, secondText);
+    }
+
+    @Test
+    public void indexesRawTextInItsCharset() throws Exception {
+        XContentBuilder builder = jsonBuilder().startObject();
+        extractor.extractText("text/plain; charset=ISO-8859-1",
+                new ByteArrayInputStream("<b>Gr\u00fc\u00dfe</b>".getBytes("ISO-8859-1")), builder, "_content");
+        builder.endObject();
+
+        assertEquals("<b>Gr\u00fc\u00dfe</b>", join(contentOf(builder)));
+    }
+
+    @Test
+    public void skipsContentWithoutNeedingIt() throws Exception {
+        ContentExtractor.Source source = extractor.source("image/jpeg", "checksum:MD5:abc");
+        assertFalse(source.needsContent());
+        XContentBuilder builder = jsonBuilder().startObject();
+        extractor.extractText(source, builder, "_content");
+        builder.endObject();
+
+        assertFalse(XContentHelper.convertToMap(builder.bytes(), false).v2().containsKey("_content"));
+    }
+
+    @Test
+    public void failsExtractionRunningLongerThanTimeout() throws Exception {
+        ContentExtractor.Extraction<String> extraction = extractor.submit(sleeping(5000));
+        try {
+            extractor.await(extraction);
+            fail("Expected extraction to time out");
+        } catch (TimeoutException e) {
+            assertTrue(extraction.isCancelled());
+        }
+        assertEquals(1, stats().get("timed_out"));
+    }
+
+    @Test
+    public void closesContentOfTimedOutExtraction() throws Exception {
+        final AtomicBoolean closed = new AtomicBoolean();
+        ContentExtractor.Extraction<String> extraction = extractor.submit(sleeping(5000), new Closeable() {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+        try {
+            extractor.await(extraction);
+            fail("Expected extraction to time out");
+        } catch (TimeoutException e) {
+            assertTrue(closed.get());
+        }
+    }
+
+    @Test
+    public void replacesThreadsOfStuckExtractions() throws Exception {
+        ContentExtractor.Extraction<String> stuck = extractor.submit(ignoringInterrupts(1000));
+        try {
+            extractor.await(stuck);
+            fail("Expected extraction to time out");
+        } catch (TimeoutException e) {
+            assertEquals(1, stats().get("stuck"));
+        }
+
+        assertEquals("done", extractor.await(extractor.submit(sleeping(10))));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!stats().get("stuck").equals(0) && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        assertEquals(0, stats().get("stuck"));
+    }
+
+    @Test
+    public void timeoutStartsWhenExtractionRuns() throws Exception {
+        ContentExtractor.Extraction<String> first = extractor.submit(sleeping(150));
+        ContentExtractor.Extraction<String> second = extractor.submit(sleeping(150));
+
+        assertEquals("done", extractor.await(first));
+        assertEquals("done", extractor.await(second));
+    }
+
+    @Test
+    public void reportsSaturation() throws Exception {
+        extractor.submit(sleeping(100));
+        extractor.submit(sleeping(100));
+        ContentExtractor.Extraction<String> blocked = extractor.submit(sleeping(100));
+        extractor.await(blocked);
+
+        assertEquals(1, stats().get("saturated"));
+    }
+
+    @Before
+    public void setup() {
+        extractor = new ContentExtractor(1, 1, TimeValue.timeValueMillis(250), -1, Executors.defaultThreadFactory());
+    }
+
+    @After
+    public void teardown() {
+        extractor.shutdown();
+    }
+
+    private Callable<String> ignoringInterrupts(final long millis) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                long end = System.currentTimeMillis() + millis;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(10);
+                    } catch (InterruptedException e) {
+                        // like a parser that does not check for interruption
+                    }
+                }
+                return "done";
+            }
+        };
+    }
+
+    private Callable<String> sleeping(final long millis) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                TimeUnit.MILLISECONDS.sleep(millis);
+                return "done";
+            }
+        };
+    }
+
+    private List<String> extractCached(ContentExtractor.Source source) throws Exception {
+        XContentBuilder builder = jsonBuilder().startObject();
+        assertFalse(extractor.extractText(source, builder, "_content"));
+        builder.endObject();
+        return contentOf(builder);
+    }
+
+    private List<String> extract(ContentExtractor extractor, InputStream content) throws Exception {
+        XContentBuilder builder = jsonBuilder().startObject();
+        assertFalse(extractor.extractText(null, content, builder, "_content"));
+        builder.endObject();
+        return contentOf(builder);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> contentOf(XContentBuilder builder) {
+        return (List<String>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("_content");
+    }
+
+    private String join(List<String> chunks) {
+        StringBuilder sb = new StringBuilder();
+        for (String chunk : chunks) sb.append(chunk);
+        return sb.toString();
+    }
+
+    private String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) sb.append(s);
+        return sb.toString();
+    }
+
+    private Map<String, Object> stats() throws Exception {
+        XContentBuilder builder = jsonBuilder().startObject();
+        extractor.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return XContentHelper.convertToMap(builder.bytes(), false).v2();
+    }
+
+}
@@ -25,17 +25,25 @@ import com.yourmediashelf.fedora.client.response.FedoraResponse;
 import com.yourmediashelf.fedora.client.response.FedoraResponseImpl;
 import com.yourmediashelf.fedora.client.response.GetDatastreamResponse;
 import de.slub.rules.InMemoryElasticsearchNode;
+import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.node.Node;
 import org.junit.*;
 
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.*;
 
 public class DatastreamIndexJobTest {
@@ -43,7 +51,7 @@ public class DatastreamIndexJobTest {
     @ClassRule
     public static InMemoryElasticsearchNode esNodeRule = new InMemoryElasticsearchNode();
     private static FedoraClient fedoraClient;
-    private ESLogger esLogger;
+    private ESLogger esLogger = ESLoggerFactory.getLogger("test-logger");
     private Node esNode = esNodeRule.getEsNode();
 
     @BeforeClass
@@ -96,6 +104,57 @@ public class DatastreamIndexJobTest {
 
     }
 
+    @Test
+    public void updatesMetadataOnlyIfContentIsUnchanged() throws Exception {
+        mockDatastreamProfile("DS.1", "abc");
+        Map<String, Object> indexedVersion = new HashMap<>();
+        indexedVersion.put("VERSION_ID", "DS.1");
+        indexedVersion.put("CHECKSUM", "abc");
+
+        DatastreamIndexJob job = new DatastreamIndexJob(IndexJob.Type.UPDATE, "test:1", "DS");
+        job.indexedVersion(indexedVersion).index("testindex");
+        Client esClient = esNode.client();
+        BulkRequestBuilder bulkRequest = esClient.prepareBulk();
+        job.execute(fedoraClient, esClient, bulkRequest, esLogger);
+
+        verify(fedoraClient, never()).execute(isA(GetDatastreamDissemination.class));
+        assertTrue(bulkRequest.request().requests().get(0) instanceof UpdateRequest);
+    }
+
+    @Test
+    public void indexesContentIfVersionChanged() throws Exception {
+        mockDatastreamProfile("DS.2", "def");
+        FedoraResponse contentResponse = mock(FedoraResponse.class);
+        when(contentResponse.getStatus()).thenReturn(200);
+        when(contentResponse.getEntityInputStream()).thenReturn(
+                this.getClass().getResourceAsStream("/response/datastreamContent.xml"));
+        when(fedoraClient.execute(isA(GetDatastreamDissemination.class))).thenReturn(contentResponse);
+        Map<String, Object> indexedVersion = new HashMap<>();
+        indexedVersion.put("VERSION_ID", "DS.1");
+        indexedVersion.put("CHECKSUM", "abc");
+
+        DatastreamIndexJob job = new DatastreamIndexJob(IndexJob.Type.UPDATE, "test:1", "DS");
+        job.indexedVersion(indexedVersion).index("testindex");
+        Client esClient = esNode.client();
+        BulkRequestBuilder bulkRequest = esClient.prepareBulk();
+        job.execute(fedoraClient, esClient, bulkRequest, esLogger);
+
+        verify(fedoraClient).execute(isA(GetDatastreamDissemination.class));
+        assertTrue(bulkRequest.request().requests().get(0) instanceof IndexRequest);
+    }
+
+    private void mockDatastreamProfile(String versionId, String checksum) throws Exception {
+        DatastreamProfile profile = new DatastreamProfile();
+        profile.setPid("test:1");
+        profile.setDsID("DS");
+        profile.setDsVersionID(versionId);
+        profile.setDsChecksum(checksum);
+        profile.setDsVersionable("true");
+        GetDatastreamResponse response = mock(GetDatastreamResponse.class);
+        when(response.getDatastreamProfile()).thenReturn(profile);
+        when(fedoraClient.execute(isA(GetDatastream.class))).thenReturn(response);
+    }
+
     @After
     public void teardown() {
         reset(fedoraClient);
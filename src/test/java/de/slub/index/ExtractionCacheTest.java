@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.*;
+
+public class ExtractionCacheTest {
+
+    private static final ESLogger esLogger = ESLoggerFactory.getLogger("test-logger");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void keysByChecksum() {
+        assertEquals(
+                ExtractionCache.key("MD5", "abc", "test:1", "DS", "DS.0"),
+                ExtractionCache.key("MD5", "abc", "test:2", "OTHER", "OTHER.3"));
+    }
+
+    @Test
+    public void keysByVersionWhenChecksumsAreDisabled() {
+        assertNotEquals(
+                ExtractionCache.key("DISABLED", "none", "test:1", "DS", "DS.0"),
+                ExtractionCache.key("DISABLED", "none", "test:1", "DS", "DS.1"));
+    }
+
+    @Test
+    public void returnsCommittedEntries() throws Exception {
+        ExtractionCache cache = openCache(ByteSizeValue.parseBytesSizeValue("1mb"));
+        put(cache, "a", "some text", true);
+
+        ExtractionCache.Entry entry = cache.get("a");
+
+        assertTrue(entry.truncated);
+        assertEquals("some text", read(entry));
+        assertNull(cache.get("b"));
+        Map<String, Object> stats = stats(cache);
+        assertEquals(1, stats.get("hits"));
+        assertEquals(1, stats.get("misses"));
+    }
+
+    @Test
+    public void dropsAbortedEntries() throws Exception {
+        ExtractionCache cache = openCache(ByteSizeValue.parseBytesSizeValue("1mb"));
+        ExtractionCache.EntryWriter writer = cache.put("a");
+        writer.write("partial text");
+        writer.abort();
+
+        assertNull(cache.get("a"));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        ExtractionCache cache = openCache(new ByteSizeValue(25));
+        put(cache, "a", "0123456789", false);
+        put(cache, "b", "0123456789", false);
+        read(cache.get("a"));
+        put(cache, "c", "0123456789", false);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(1, stats(cache).get("evictions"));
+    }
+
+    @Test
+    public void reopensExistingEntries() throws Exception {
+        put(openCache(ByteSizeValue.parseBytesSizeValue("1mb")), "a", "some text", false);
+
+        ExtractionCache reopened = openCache(ByteSizeValue.parseBytesSizeValue("1mb"));
+
+        assertEquals("some text", read(reopened.get("a")));
+    }
+
+    private ExtractionCache openCache(ByteSizeValue maxSize) throws IOException {
+        ExtractionCache cache = new ExtractionCache(folder.getRoot(), maxSize, esLogger);
+        cache.open();
+        return cache;
+    }
+
+    private void put(ExtractionCache cache, String key, String text, boolean truncated) throws IOException {
+        ExtractionCache.EntryWriter writer = cache.put(key);
+        writer.write(text);
+        writer.commit(truncated);
+    }
+
+    private String read(ExtractionCache.Entry entry) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        try (Reader text = entry.text) {
+            char[] buffer = new char[64];
+            int n;
+            while ((n = text.read(buffer)) != -1) {
+                sb.append(buffer, 0, n);
+            }
+        }
+        return sb.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> stats(ExtractionCache cache) throws IOException {
+        XContentBuilder builder = jsonBuilder().startObject();
+        cache.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("cache");
+    }
+
+}
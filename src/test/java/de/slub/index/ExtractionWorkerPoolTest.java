@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.ParseContext;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.After;
+import org.junit.Test;
+import org.xml.sax.ContentHandler;
+
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.*;
+
+public class ExtractionWorkerPoolTest {
+
+    private ExtractionWorkerPool pool;
+
+    @Test
+    public void extractsTextInWorker() throws Exception {
+        pool = createPool(10, TimeValue.timeValueSeconds(30));
+        StringWriter text = new StringWriter();
+
+        boolean truncated = pool.extract(MimeTypeRouting.AUTO, "text/xml", content(), text, -1);
+
+        assertFalse(truncated);
+        assertFalse(text.toString().trim().isEmpty());
+    }
+
+    @Test
+    public void truncatesTextInWorker() throws Exception {
+        pool = createPool(10, TimeValue.timeValueSeconds(30));
+        StringWriter text = new StringWriter();
+
+        assertTrue(pool.extract(MimeTypeRouting.AUTO, "text/xml", content(), text, 10));
+        assertEquals(10, text.toString().length());
+    }
+
+    @Test
+    public void killsWorkerRunningLongerThanTimeout() throws Exception {
+        pool = createPool(10, TimeValue.timeValueSeconds(2));
+        try {
+            pool.extract(HangingParser.class.getName(), null, content(), new StringWriter(), -1);
+            fail("Expected extraction to time out");
+        } catch (TimeoutException e) {
+            assertEquals(1, stats().get("timed_out"));
+        }
+
+        // a parser that returns at once, so that only the replacement worker is tested
+        try {
+            pool.extract(FailingParser.class.getName(), null, content(), new StringWriter(), -1);
+            fail("Expected extraction to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("Malformed document"));
+        }
+        assertEquals(2, stats().get("started"));
+        assertEquals(1, stats().get("timed_out"));
+    }
+
+    @Test
+    public void keepsWorkerWhenParserFails() throws Exception {
+        pool = createPool(10, TimeValue.timeValueSeconds(30));
+        try {
+            pool.extract(FailingParser.class.getName(), null, content(), new StringWriter(), -1);
+            fail("Expected extraction to fail");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("Malformed document"));
+        }
+
+        pool.extract(MimeTypeRouting.AUTO, "text/xml", content(), new StringWriter(), -1);
+        assertEquals(1, stats().get("started"));
+        assertEquals(0, stats().get("crashed"));
+    }
+
+    @Test
+    public void recyclesWorkersAfterMaxDocuments() throws Exception {
+        pool = createPool(1, TimeValue.timeValueSeconds(30));
+
+        pool.extract(MimeTypeRouting.AUTO, "text/xml", content(), new StringWriter(), -1);
+        pool.extract(MimeTypeRouting.AUTO, "text/xml", content(), new StringWriter(), -1);
+
+        assertEquals(2, stats().get("started"));
+        assertEquals(2, stats().get("recycled"));
+    }
+
+    @After
+    public void teardown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private ExtractionWorkerPool createPool(int maxDocuments, TimeValue timeout) {
+        return new ExtractionWorkerPool(1,
+                ExtractionWorkerPool.command(null, ByteSizeValue.parseBytesSizeValue("128mb"),
+                        Collections.<String>emptyList(), null),
+                maxDocuments, timeout, Executors.defaultThreadFactory());
+    }
+
+    private InputStream content() {
+        return getClass().getResourceAsStream("/response/datastreamContent.xml");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> stats() throws Exception {
+        XContentBuilder builder = jsonBuilder().startObject();
+        pool.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        builder.endObject();
+        return (Map<String, Object>) XContentHelper.convertToMap(builder.bytes(), false).v2().get("workers");
+    }
+
+    public static class HangingParser extends AbstractParser {
+        @Override
+        public Set<MediaType> getSupportedTypes(ParseContext context) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context) {
+            try {
+                TimeUnit.MINUTES.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static class FailingParser extends AbstractParser {
+        @Override
+        public Set<MediaType> getSupportedTypes(ParseContext context) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+                throws TikaException {
+            throw new TikaException("Malformed document");
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import de.slub.util.concurrent.UniquePredicateDelayQueue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static de.slub.index.IndexJob.Type.*;
+import static org.junit.Assert.*;
+
+public class IndexJobCoalescerTest {
+
+    private UniquePredicateDelayQueue<IndexJob> queue;
+
+    @Test
+    public void deleteSupersedesCreateAndUpdate() {
+        queue.add(new ObjectIndexJob(CREATE, "test:1", 1, TimeUnit.SECONDS));
+        queue.add(new ObjectIndexJob(UPDATE, "test:1", 5, TimeUnit.SECONDS));
+        queue.add(new ObjectIndexJob(DELETE, "test:1"));
+
+        assertEquals(1, queue.size());
+        assertEquals(new ObjectIndexJob(DELETE, "test:1"), queue.poll());
+    }
+
+    @Test
+    public void objectDeleteSupersedesDatastreamJobsOfObject() {
+        queue.add(new DatastreamIndexJob(CREATE, "test:1", "DS1", 5, TimeUnit.SECONDS));
+        queue.add(new DatastreamIndexJob(UPDATE, "test:1", "DS2", 5, TimeUnit.SECONDS));
+        queue.add(new DatastreamIndexJob(UPDATE, "test:2", "DS1", 5, TimeUnit.SECONDS));
+        queue.add(new ObjectIndexJob(DELETE, "test:1"));
+
+        assertEquals(2, queue.size());
+        assertFalse(queue.contains(new DatastreamIndexJob(CREATE, "test:1", "DS1")));
+        assertFalse(queue.contains(new DatastreamIndexJob(UPDATE, "test:1", "DS2")));
+        assertTrue(queue.contains(new DatastreamIndexJob(UPDATE, "test:2", "DS1")));
+    }
+
+    @Test
+    public void keepsDatastreamJobsQueuedAfterObjectDelete() {
+        queue.add(new ObjectIndexJob(DELETE, "test:1"));
+        queue.add(new DatastreamIndexJob(CREATE, "test:1", "DS1", 5, TimeUnit.SECONDS));
+
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void dropsUpdateAfterDelete() {
+        queue.add(new DatastreamIndexJob(DELETE, "test:1", "DS1"));
+        queue.add(new DatastreamIndexJob(UPDATE, "test:1", "DS1", 5, TimeUnit.SECONDS));
+
+        assertEquals(1, queue.size());
+        assertEquals(new DatastreamIndexJob(DELETE, "test:1", "DS1"), queue.poll());
+    }
+
+    @Test
+    public void collapsesCreateAndUpdateIntoCreateWithEarliestDeadline() {
+        queue.add(new ObjectIndexJob(UPDATE, "test:1", 0, TimeUnit.SECONDS));
+        queue.add(new ObjectIndexJob(CREATE, "test:1", 1, TimeUnit.MINUTES));
+
+        assertEquals(1, queue.size());
+        IndexJob job = queue.poll();
+        assertNotNull("Merged job should keep the earlier deadline", job);
+        assertEquals(CREATE, job.type());
+    }
+
+    @Test
+    public void keepsCreateAfterDelete() {
+        queue.add(new ObjectIndexJob(DELETE, "test:1"));
+        queue.add(new ObjectIndexJob(CREATE, "test:1", 1, TimeUnit.MILLISECONDS));
+        queue.add(new ObjectIndexJob(UPDATE, "test:1", 1, TimeUnit.MINUTES));
+
+        assertEquals(2, queue.size());
+        assertEquals(DELETE, queue.poll().type());
+    }
+
+    @Test
+    public void doesNotPostponeReplacedJobBeyondMaxDeadline() {
+        long maxDeadline = System.currentTimeMillis() + 2000;
+        queue.add(new ObjectIndexJob(UPDATE, "test:1", 1, TimeUnit.SECONDS).maxDeadline(maxDeadline));
+        queue.add(new ObjectIndexJob(UPDATE, "test:1", 5, TimeUnit.SECONDS).maxDeadline(maxDeadline + 4000));
+
+        assertEquals(1, queue.size());
+        IndexJob job = queue.peek();
+        assertEquals(maxDeadline, job.deadline());
+        assertEquals(maxDeadline, job.maxDeadline());
+    }
+
+    @Test
+    public void postponesReplacedJobWithinMaxDeadline() {
+        long maxDeadline = System.currentTimeMillis() + 60000;
+        queue.add(new ObjectIndexJob(UPDATE, "test:1", 1, TimeUnit.SECONDS).maxDeadline(maxDeadline));
+        IndexJob replacing = new ObjectIndexJob(UPDATE, "test:1", 5, TimeUnit.SECONDS).maxDeadline(maxDeadline + 4000);
+        queue.add(replacing);
+
+        IndexJob job = queue.peek();
+        assertEquals(replacing.deadline(), job.deadline());
+        assertEquals(maxDeadline, job.maxDeadline());
+    }
+
+    @Test
+    public void doesNotMergeDifferentDocuments() {
+        queue.add(new ObjectIndexJob(CREATE, "test:1"));
+        queue.add(new DatastreamIndexJob(DELETE, "test:1", "DS1"));
+        queue.add(new ObjectIndexJob(DELETE, "test:2"));
+
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void mergesObjectJobsTriggeredByDifferentDatastreams() {
+        queue.add(new ObjectIndexJob(UPDATE, "test:1", "DS1"));
+        queue.add(new ObjectIndexJob(UPDATE, "test:1", "DS2"));
+
+        assertEquals(1, queue.size());
+    }
+
+    @Before
+    public void setup() {
+        queue = new UniquePredicateDelayQueue<>();
+        queue.coalescer(new IndexJobCoalescer());
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import de.slub.util.concurrent.UniquePredicateDelayQueue;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static de.slub.index.IndexJob.Type.CREATE;
+import static de.slub.index.IndexJob.Type.DELETE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IndexJobDispatcherTest {
+
+    private IndexJobDispatcher dispatcher;
+    private UniquePredicateDelayQueue<IndexJob> jobQueue;
+    private Thread thread;
+
+    @Test
+    public void dispatchesJobsOfSameObjectToSameWorkerInOrder() throws Exception {
+        IndexJob create = new ObjectIndexJob(CREATE, "test:1");
+        IndexJob createDatastream = new DatastreamIndexJob(CREATE, "test:1", "DS1", 5, TimeUnit.MILLISECONDS);
+        IndexJob delete = new ObjectIndexJob(DELETE, "test:1", 10, TimeUnit.MILLISECONDS);
+        jobQueue.add(create);
+        jobQueue.add(createDatastream);
+        jobQueue.add(delete);
+
+        BlockingQueue<IndexJob> stripe = dispatcher.stripe(dispatcher.stripeIndex(create));
+
+        assertEquals(create, stripe.poll(1, TimeUnit.SECONDS));
+        assertEquals(createDatastream, stripe.poll(1, TimeUnit.SECONDS));
+        assertEquals(delete, stripe.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void distributesJobsOverAllWorkers() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            jobQueue.add(new ObjectIndexJob(CREATE, "test:" + i));
+        }
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        for (int i = 0; i < dispatcher.stripeCount(); i++) {
+            assertTrue("Worker queue " + i + " got no jobs", dispatcher.stripe(i).size() > 0);
+        }
+    }
+
+    @Before
+    public void setup() {
+        jobQueue = new UniquePredicateDelayQueue<>();
+        dispatcher = new IndexJobDispatcher(jobQueue, 4, ESLoggerFactory.getRootLogger());
+        thread = new Thread(dispatcher);
+        thread.start();
+    }
+
+    @After
+    public void teardown() throws InterruptedException {
+        dispatcher.terminate();
+        thread.join();
+    }
+
+}
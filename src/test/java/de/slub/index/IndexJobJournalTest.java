@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import de.slub.util.concurrent.UniquePredicateDelayQueue;
+import org.apache.commons.io.FileUtils;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static de.slub.index.IndexJob.Type.CREATE;
+import static de.slub.index.IndexJob.Type.UPDATE;
+import static org.junit.Assert.*;
+
+public class IndexJobJournalTest {
+
+    private File directory;
+    private IndexJobJournal journal;
+
+    @Test
+    public void restoresPendingJobsAfterRestart() throws Exception {
+        journal.open();
+        UniquePredicateDelayQueue<IndexJob> queue = new UniquePredicateDelayQueue<>();
+        queue.addListener(journal);
+        queue.add(new ObjectIndexJob(CREATE, "test:1"));
+        queue.add(new DatastreamIndexJob(UPDATE, "test:1", "DS1", 1, TimeUnit.HOURS));
+        journal.close();
+
+        List<IndexJob> restored = reopen();
+
+        assertEquals(2, restored.size());
+        assertTrue(restored.contains(new ObjectIndexJob(CREATE, "test:1")));
+        assertTrue(restored.contains(new DatastreamIndexJob(UPDATE, "test:1", "DS1")));
+        for (IndexJob job : restored) {
+            if (job instanceof DatastreamIndexJob) {
+                assertTrue(job.getDelay(TimeUnit.MINUTES) > 50);
+            }
+        }
+    }
+
+    @Test
+    public void restoresMaximumDeadline() throws Exception {
+        journal.open();
+        UniquePredicateDelayQueue<IndexJob> queue = new UniquePredicateDelayQueue<>();
+        queue.addListener(journal);
+        long maxDeadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(5);
+        queue.add(new DatastreamIndexJob(UPDATE, "test:1", "DS1", 1, TimeUnit.MINUTES).maxDeadline(maxDeadline));
+        queue.add(new ObjectIndexJob(CREATE, "test:2"));
+        journal.close();
+
+        List<IndexJob> restored = reopen();
+
+        assertEquals(2, restored.size());
+        for (IndexJob job : restored) {
+            if (job instanceof DatastreamIndexJob) {
+                assertEquals(maxDeadline, job.maxDeadline());
+            } else {
+                assertEquals(Long.MAX_VALUE, job.maxDeadline());
+            }
+        }
+    }
+
+    @Test
+    public void doesNotRestoreCompletedOrDiscardedJobs() throws Exception {
+        journal.open();
+        UniquePredicateDelayQueue<IndexJob> queue = new UniquePredicateDelayQueue<>();
+        queue.addListener(journal);
+        queue.add(new ObjectIndexJob(CREATE, "test:1"));
+        queue.add(new ObjectIndexJob(CREATE, "test:2"));
+        queue.add(new ObjectIndexJob(CREATE, "test:3"));
+        journal.completed(queue.poll());
+        queue.remove(new ObjectIndexJob(CREATE, "test:2"));
+        journal.close();
+
+        List<IndexJob> restored = reopen();
+
+        assertEquals(1, restored.size());
+        assertEquals(new ObjectIndexJob(CREATE, "test:3"), restored.get(0));
+    }
+
+    @Test
+    public void compactsIntoNewGeneration() throws Exception {
+        journal = new IndexJobJournal(directory, TimeValue.timeValueMillis(10),
+                new ByteSizeValue(1024), ESLoggerFactory.getRootLogger());
+        journal.open();
+        for (int i = 0; i < 100; i++) {
+            IndexJob job = new ObjectIndexJob(CREATE, "test:" + i);
+            journal.enqueued(job);
+            journal.completed(job);
+        }
+        journal.enqueued(new ObjectIndexJob(CREATE, "test:last"));
+        assertTrue(journal.needsCompaction());
+
+        journal.compact();
+        journal.close();
+
+        assertFalse(journal.needsCompaction());
+        assertEquals(1, directory.list().length);
+        List<IndexJob> restored = reopen();
+        assertEquals(1, restored.size());
+        assertEquals(new ObjectIndexJob(CREATE, "test:last"), restored.get(0));
+    }
+
+    @Test
+    public void fallsBackToPreviousGenerationWhenLastIsCorrupt() throws Exception {
+        journal.open();
+        journal.enqueued(new ObjectIndexJob(CREATE, "test:1"));
+        journal.close();
+        File[] generations = directory.listFiles();
+        assertEquals(1, generations.length);
+        // a newer generation whose header never made it to disk
+        File torn = new File(directory, "journal-1000.log");
+        try (RandomAccessFile raf = new RandomAccessFile(torn, "rw")) {
+            raf.setLength(1024);
+        }
+
+        List<IndexJob> restored = reopen();
+
+        assertEquals(1, restored.size());
+        assertEquals(new ObjectIndexJob(CREATE, "test:1"), restored.get(0));
+        journal.close();
+        assertFalse(torn.exists());
+        assertEquals(1, reopen().size());
+    }
+
+    @Before
+    public void setup() throws Exception {
+        directory = new File("target/journal-test");
+        FileUtils.deleteDirectory(directory);
+        journal = new IndexJobJournal(directory, ESLoggerFactory.getRootLogger());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        journal.close();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private List<IndexJob> reopen() throws Exception {
+        journal = new IndexJobJournal(directory, ESLoggerFactory.getRootLogger());
+        return journal.open();
+    }
+
+}
@@ -21,19 +21,28 @@ import de.slub.rules.InMemoryElasticsearchNode;
 import de.slub.util.TerminateableRunnable;
 import de.slub.util.concurrent.UniquePredicateDelayQueue;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.node.Node;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
@@ -63,6 +72,57 @@ public class IndexJobProcessorTest {
         assertTrue("Timestamp missing", response.getSourceAsMap().containsKey("timestamp"));
     }
 
+    @Test
+    public void indexesBulkableJobs() throws Exception {
+        jobQueue.add(new BulkJob(IndexJob.Type.CREATE, "test:2", false));
+        jobQueue.add(new BulkJob(IndexJob.Type.CREATE, "test:3", false));
+
+        runAndWait(indexJobProcessor);
+
+        esClient.admin().indices().refresh(new RefreshRequest("testindex")).actionGet();
+
+        assertTrue(esClient.prepareGet("testindex", "bulk", "test:2").execute().actionGet().isExists());
+        assertTrue(esClient.prepareGet("testindex", "bulk", "test:3").execute().actionGet().isExists());
+    }
+
+    @Test
+    public void writesIndexErrorDocumentForFailedBulkItem() throws Exception {
+        jobQueue.add(new BulkJob(IndexJob.Type.CREATE, "test:4", true));
+        jobQueue.add(new BulkJob(IndexJob.Type.CREATE, "test:5", false));
+
+        runAndWait(indexJobProcessor);
+
+        esClient.admin().indices().refresh(new RefreshRequest("testindex")).actionGet();
+
+        assertTrue(esClient.prepareGet("testindex", "error", "test:4").execute().actionGet().isExists());
+        assertFalse(esClient.prepareGet("testindex", "error", "test:5").execute().actionGet().isExists());
+        assertTrue(esClient.prepareGet("testindex", "bulk", "test:5").execute().actionGet().isExists());
+    }
+
+    @Test
+    public void doesNotPrefetchDatastreamBeforePendingObjectJob() throws Exception {
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        jobQueue.add(new RecordingObjectDeleteJob("test:6", events));
+        jobQueue.add(new RecordingDatastreamJob("test:6", events));
+
+        ContentExtractor extractor = new ContentExtractor(2, 2, TimeValue.timeValueSeconds(10),
+                ContentExtractor.DEFAULT_MAX_CHARS, Executors.defaultThreadFactory());
+        try {
+            runAndWait(new IndexJobProcessorBuilder()
+                    .indexJobQueue(jobQueue)
+                    .indexName("testindex")
+                    .esClient(esClient)
+                    .fedoraClient(fedoraClient)
+                    .logger(esLogger)
+                    .extractor(extractor)
+                    .build());
+        } finally {
+            extractor.shutdown();
+        }
+
+        assertEquals(Arrays.asList("delete", "prefetch"), events);
+    }
+
     @Before
     public void setup() {
         jobQueue = new UniquePredicateDelayQueue<>();
@@ -113,4 +173,87 @@ public class IndexJobProcessorTest {
             throw EXCEPTION;
         }
     }
+
+    private class RecordingObjectDeleteJob extends IndexJob {
+        private final List<String> events;
+
+        public RecordingObjectDeleteJob(String pid, List<String> events) {
+            // due before the datastream job queued after it
+            super(Type.DELETE, pid, -1, TimeUnit.SECONDS);
+            this.events = events;
+        }
+
+        @Override
+        protected List<IndexJob> executeDelete(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception {
+            events.add("delete");
+            return new ArrayList<>();
+        }
+
+        @Override
+        protected List<IndexJob> executeUpdate(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected List<IndexJob> executeCreate(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class RecordingDatastreamJob extends DatastreamIndexJob {
+        private final List<String> events;
+
+        public RecordingDatastreamJob(String pid, List<String> events) {
+            super(Type.CREATE, pid, "DS1");
+            this.events = events;
+        }
+
+        @Override
+        public void prefetch(FedoraClient fedoraClient) {
+            if (!events.contains("prefetch")) events.add("prefetch");
+        }
+
+        @Override
+        protected List<IndexJob> bulkCreate(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+            return new ArrayList<>();
+        }
+    }
+
+    private class BulkJob extends IndexJob {
+        private final boolean failing;
+
+        public BulkJob(Type type, String pid, boolean failing) {
+            super(type, pid);
+            this.failing = failing;
+        }
+
+        @Override
+        public boolean isBulkable() {
+            return true;
+        }
+
+        @Override
+        protected List<IndexJob> bulkCreate(FedoraClient fedoraClient, Client client, BulkRequestBuilder bulkRequest, ESLogger log) throws Exception {
+            // indexing with an explicit version fails for documents that don't exist
+            bulkRequest.add(client.prepareIndex(index(), "bulk", esid())
+                    .setVersion(failing ? 42 : 0)
+                    .setSource(jsonBuilder().startObject().field("PID", pid()).endObject()));
+            return new java.util.ArrayList<>();
+        }
+
+        @Override
+        protected List<IndexJob> executeDelete(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected List<IndexJob> executeUpdate(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected List<IndexJob> executeCreate(FedoraClient fedoraClient, Client client, ESLogger log) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.index;
+
+import org.apache.tika.parser.pdf.PDFParser;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MimeTypeRoutingTest {
+
+    @Test
+    public void routesByDefaultTable() {
+        MimeTypeRouting routing = MimeTypeRouting.DEFAULT;
+
+        assertEquals(MimeTypeRouting.Action.RAW, routing.route("text/xml").action);
+        assertEquals(MimeTypeRouting.Action.SKIP, routing.route("image/tiff").action);
+        assertEquals(MimeTypeRouting.Action.AUTO, routing.route("application/pdf").action);
+        assertEquals(MimeTypeRouting.Action.AUTO, routing.route(null).action);
+    }
+
+    @Test
+    public void ignoresParametersAndCase() {
+        assertEquals(MimeTypeRouting.Action.RAW,
+                MimeTypeRouting.DEFAULT.route("Text/Plain; charset=ISO-8859-1").action);
+        assertEquals("ISO-8859-1", MimeTypeRouting.charset("Text/Plain; charset=\"ISO-8859-1\""));
+    }
+
+    @Test
+    public void sharesParserInstances() {
+        Map<String, Object> routes = new HashMap<>();
+        routes.put("application/pdf", PDFParser.class.getName());
+        routes.put("application/x-pdf", PDFParser.class.getName());
+        MimeTypeRouting routing = new MimeTypeRouting(routes);
+
+        MimeTypeRouting.Route route = routing.route("application/pdf");
+        assertEquals(MimeTypeRouting.Action.PARSE, route.action);
+        assertTrue(route.parser instanceof PDFParser);
+        assertSame(route.parser, routing.route("application/x-pdf").parser);
+    }
+
+    @Test
+    public void fallsBackToWildcardRoute() {
+        Map<String, Object> routes = new HashMap<>();
+        routes.put("*", MimeTypeRouting.SKIP);
+        MimeTypeRouting routing = new MimeTypeRouting(routes);
+
+        assertEquals(MimeTypeRouting.Action.SKIP, routing.route("application/octet-stream").action);
+        assertEquals(MimeTypeRouting.Action.RAW, routing.route("text/plain").action);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownParsers() {
+        Map<String, Object> routes = new HashMap<>();
+        routes.put("application/pdf", "java.lang.String");
+        new MimeTypeRouting(routes);
+    }
+
+}
@@ -18,7 +18,10 @@ package de.slub.index;
 
 import com.yourmediashelf.fedora.client.FedoraClient;
 import com.yourmediashelf.fedora.client.FedoraClientException;
-import com.yourmediashelf.fedora.client.request.FedoraRequest;
+import com.yourmediashelf.fedora.client.request.GetDatastream;
+import com.yourmediashelf.fedora.client.request.GetDatastreams;
+import com.yourmediashelf.fedora.client.request.GetDissemination;
+import com.yourmediashelf.fedora.client.request.GetObjectProfile;
 import com.yourmediashelf.fedora.client.response.GetDatastreamResponse;
 import com.yourmediashelf.fedora.client.response.GetObjectProfileResponse;
 import com.yourmediashelf.fedora.generated.management.DatastreamProfile;
@@ -32,11 +35,14 @@ import org.elasticsearch.node.Node;
 import org.junit.*;
 
 import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static de.slub.index.IndexJob.Type.*;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.junit.Assert.*;
-import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.*;
 
 public class ObjectIndexJobTest {
@@ -49,6 +55,7 @@ public class ObjectIndexJobTest {
     private Node esNode = esNodeRule.getEsNode();
 
     private FedoraClient fedoraClient;
+    private ExecutorService executor;
 
     @Test
     public void executesCreateIndexDocument() throws Exception {
@@ -118,6 +125,35 @@ public class ObjectIndexJobTest {
         assertEquals(2, response.getVersion());
     }
 
+    @Test
+    public void failsWhenDisseminationFails() throws Exception {
+        when(fedoraClient.execute(isA(GetDissemination.class)))
+                .thenThrow(new FedoraClientException("Dissemination failed"));
+
+        ObjectIndexJob job = new ObjectIndexJob(CREATE, "test:1234");
+        job.index("idx1").sdefPid("test:SDef").method("getIndexDocument").executor(executor);
+        try {
+            job.execute(fedoraClient, esNode.client(), esLogger);
+            fail("Expected job to fail");
+        } catch (Exception ex) {
+            assertTrue(ex.getMessage().startsWith("Could not obtain object dissemination"));
+        }
+    }
+
+    @Test
+    public void indexesObjectWhenDatastreamListingFails() throws Exception {
+        when(fedoraClient.execute(isA(GetDatastreams.class)))
+                .thenThrow(new FedoraClientException("Listing failed"));
+
+        ObjectIndexJob job = new ObjectIndexJob(CREATE, "test:1234");
+        job.index("idx1").executor(executor);
+        List<IndexJob> datastreamJobs = job.execute(fedoraClient, esNode.client(), esLogger);
+
+        assertTrue(datastreamJobs.isEmpty());
+        GetResponse response = esNode.client().get(new GetRequest("idx1", ObjectIndexJob.ES_TYPE_NAME, "test:1234")).actionGet();
+        assertTrue(response.isExists());
+    }
+
     @Before
     public void mockFedoraClient() throws FedoraClientException, ParseException {
         fedoraClient = mock(FedoraClient.class);
@@ -137,14 +173,16 @@ public class ObjectIndexJobTest {
         datastreamProfile.setDsVersionable("true");
         when(mockDatastreamResponse.getDatastreamProfile()).thenReturn(datastreamProfile);
 
-        when(fedoraClient.execute(any(FedoraRequest.class)))
-                .thenReturn(mockGetObjectProfileResponse)
-                .thenReturn(mockDatastreamResponse);
+        when(fedoraClient.execute(isA(GetObjectProfile.class))).thenReturn(mockGetObjectProfileResponse);
+        when(fedoraClient.execute(isA(GetDatastream.class))).thenReturn(mockDatastreamResponse);
+
+        executor = Executors.newFixedThreadPool(2);
     }
 
     @After
     public void resetMockFedoraClient() {
         reset(fedoraClient);
+        executor.shutdown();
     }
 
 
@@ -22,11 +22,11 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.Timeout;
 
+import java.util.*;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNull;
+import static org.junit.Assert.*;
 
 public class UniqueDelayQueueTest {
 
@@ -79,4 +79,80 @@ public class UniqueDelayQueueTest {
         assertEquals(second, queue.peek());
     }
 
+    @Test
+    public void replacesEqualElement() {
+        KeyedElement first = new KeyedElement("a", 1, TimeUnit.MINUTES);
+        KeyedElement replacement = new KeyedElement("a", 0, TimeUnit.MILLISECONDS);
+        queue.add(first);
+        queue.add(replacement);
+
+        assertEquals(1, queue.size());
+        assertSame(replacement, queue.poll());
+    }
+
+    @Test
+    public void removesElement() {
+        Delayed first = new DelayedQueueElement(1, TimeUnit.MILLISECONDS);
+        Delayed second = new DelayedQueueElement(2, TimeUnit.MILLISECONDS);
+        queue.add(first);
+        queue.add(second);
+
+        assertTrue(queue.remove(first));
+        assertFalse(queue.contains(first));
+        assertTrue(queue.contains(second));
+        assertEquals(second, queue.peek());
+    }
+
+    @Test
+    public void keepsDelayOrderUnderRandomReplacements() throws InterruptedException {
+        Random random = new Random(42);
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            String key = String.valueOf(random.nextInt(200));
+            keys.add(key);
+            queue.add(new KeyedElement(key, random.nextInt(50), TimeUnit.MILLISECONDS));
+        }
+        TimeUnit.MILLISECONDS.sleep(60);
+
+        List<Delayed> drained = new ArrayList<>();
+        queue.drainTo(drained);
+
+        assertEquals(keys.size(), drained.size());
+        for (int i = 1; i < drained.size(); i++) {
+            assertTrue(drained.get(i - 1).compareTo(drained.get(i)) <= 0);
+        }
+    }
+
+    @Test
+    public void drainsOnlyExpiredElements() {
+        Delayed ready = new DelayedQueueElement();
+        Delayed waiting = new DelayedQueueElement(1, TimeUnit.MINUTES);
+        queue.add(ready);
+        queue.add(waiting);
+
+        List<Delayed> drained = new ArrayList<>();
+        assertEquals(1, queue.drainTo(drained));
+        assertSame(ready, drained.get(0));
+        assertEquals(1, queue.size());
+    }
+
+    private static class KeyedElement extends DelayedQueueElement {
+        private final String key;
+
+        KeyedElement(String key, long delay, TimeUnit unit) {
+            super(delay, unit);
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof KeyedElement) && ((KeyedElement) obj).key.equals(key);
+        }
+    }
+
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.util.concurrent;
+
+import de.slub.index.DatastreamIndexJob;
+import de.slub.index.IndexJob;
+import de.slub.index.IndexJobCoalescer;
+import de.slub.index.ObjectIndexJob;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of enqueueing index jobs into a queue that already holds many jobs.
+ * The <code>linear</code> implementation is the former DelayQueue based variant, the
+ * <code>coalesced</code> one also queues a datastream job per object and coalesces jobs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+public class UniquePredicateDelayQueueBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int queuedJobs;
+
+    @Param({"hashed", "linear", "coalesced"})
+    public String implementation;
+
+    private BlockingQueue<IndexJob> queue;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void fillQueue() {
+        if ("linear".equals(implementation)) {
+            LinearUniqueDelayQueue<IndexJob> linearQueue = new LinearUniqueDelayQueue<>();
+            for (int i = 0; i < queuedJobs; i++) linearQueue.preload(job("queued:" + i));
+            queue = linearQueue;
+        } else if ("coalesced".equals(implementation)) {
+            UniquePredicateDelayQueue<IndexJob> coalescedQueue = new UniquePredicateDelayQueue<>();
+            coalescedQueue.coalescer(new IndexJobCoalescer());
+            for (int i = 0; i < queuedJobs; i++) {
+                coalescedQueue.offer(job("queued:" + i));
+                coalescedQueue.offer(new DatastreamIndexJob(IndexJob.Type.UPDATE, "queued:" + i, "DS", 1, TimeUnit.HOURS));
+            }
+            queue = coalescedQueue;
+        } else {
+            queue = new UniquePredicateDelayQueue<>();
+            for (int i = 0; i < queuedJobs; i++) queue.offer(job("queued:" + i));
+        }
+    }
+
+    @Benchmark
+    public boolean offerAndRemoveNewJob() {
+        IndexJob job = job("new:" + next++);
+        queue.offer(job);
+        return queue.remove(job);
+    }
+
+    @Benchmark
+    public boolean offerAndRemoveObjectDelete() {
+        IndexJob job = new ObjectIndexJob(IndexJob.Type.DELETE, "new:" + next++, 1, TimeUnit.HOURS);
+        queue.offer(job);
+        return queue.remove(job);
+    }
+
+    @Benchmark
+    public boolean offerDuplicateJob() {
+        return queue.offer(job("queued:" + (next++ % queuedJobs)));
+    }
+
+    private IndexJob job(String pid) {
+        return new ObjectIndexJob(IndexJob.Type.CREATE, pid, 1, TimeUnit.HOURS);
+    }
+
+    private static class LinearUniqueDelayQueue<T extends Delayed> extends DelayQueue<T> {
+        @Override
+        public boolean offer(T e) {
+            if (contains(e)) {
+                remove(e);
+            }
+            return super.offer(e);
+        }
+
+        void preload(T e) {
+            super.offer(e);
+        }
+    }
+
+}
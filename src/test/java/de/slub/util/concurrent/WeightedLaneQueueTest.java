@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 SLUB Dresden
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.slub.util.concurrent;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.*;
+
+public class WeightedLaneQueueTest {
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(2000);
+    private UniquePredicateDelayQueue<LaneElement> fastLane;
+    private UniquePredicateDelayQueue<LaneElement> slowLane;
+    private WeightedLaneQueue<LaneElement> queue;
+
+    @Test
+    public void routesElementsBySelector() {
+        queue.add(new LaneElement("a", true, 0));
+        queue.add(new LaneElement("b", false, 0));
+
+        assertEquals(1, fastLane.size());
+        assertEquals(1, slowLane.size());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void sharesConsumersByWeight() {
+        for (int i = 0; i < 100; i++) {
+            queue.add(new LaneElement("fast" + i, true, 0));
+            queue.add(new LaneElement("slow" + i, false, 0));
+        }
+
+        List<LaneElement> polled = new ArrayList<>();
+        queue.drainTo(polled, 40);
+
+        int fast = 0;
+        for (LaneElement e : polled) {
+            if (e.fast) fast++;
+        }
+        assertEquals(30, fast);
+    }
+
+    @Test
+    public void idleLaneLeavesShareToOthers() {
+        for (int i = 0; i < 10; i++) {
+            queue.add(new LaneElement("slow" + i, false, 0));
+        }
+
+        List<LaneElement> polled = new ArrayList<>();
+        assertEquals(10, queue.drainTo(polled));
+    }
+
+    @Test
+    public void takesExpiredElementOfLowerLaneFirst() {
+        queue.add(new LaneElement("fast", true, 1000));
+        queue.add(new LaneElement("slow", false, 0));
+
+        assertEquals("slow", queue.poll().key);
+    }
+
+    @Test
+    public void movesMatchingElementToPriorLane() {
+        queue.add(new LaneElement("a", false, 0));
+        queue.add(new LaneElement("a", true, 0));
+
+        assertEquals(0, slowLane.size());
+        assertEquals(1, fastLane.size());
+    }
+
+    @Test
+    public void assignsMovedElementsToPriorLane() {
+        LaneElement moved = new LaneElement("a", false, 0);
+        queue.add(moved);
+        queue.add(new LaneElement("a", true, 0));
+        queue.add(new LaneElement("b", true, 0));
+        LaneElement offered = new LaneElement("b", false, 0);
+        queue.add(offered);
+
+        assertTrue(moved.fast);
+        assertTrue(offered.fast);
+        assertEquals(2, fastLane.size());
+    }
+
+    @Test
+    public void waitsForDelayedElement() throws InterruptedException {
+        queue.add(new LaneElement("a", false, 20));
+
+        assertNull(queue.poll());
+        assertEquals("a", queue.poll(1, TimeUnit.SECONDS).key);
+    }
+
+    @Test
+    public void reportsLaneStatistics() throws Exception {
+        queue.add(new LaneElement("a", true, 0));
+        queue.add(new LaneElement("b", false, 0));
+        queue.poll();
+
+        XContentBuilder builder = jsonBuilder().startObject();
+        queue.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String json = builder.endObject().string();
+
+        assertTrue(json.contains("\"fast\":{\"weight\":3,\"depth\":0,\"dequeued\":1"));
+        assertTrue(json.contains("\"slow\":{\"weight\":1,\"depth\":1,\"dequeued\":0"));
+    }
+
+    @Before
+    public void setUp() {
+        fastLane = new UniquePredicateDelayQueue<>();
+        slowLane = new UniquePredicateDelayQueue<>();
+        queue = new WeightedLaneQueue<LaneElement>()
+                .addLane("fast", 3, new LaneSelector<LaneElement>() {
+                    @Override
+                    public boolean evaluate(LaneElement e) {
+                        return e.fast;
+                    }
+
+                    @Override
+                    public void assign(LaneElement e) {
+                        e.fast = true;
+                    }
+                }, fastLane)
+                .addLane("slow", 1, null, slowLane);
+    }
+
+    private static class LaneElement extends DelayedQueueElement {
+        private final String key;
+        private boolean fast;
+
+        LaneElement(String key, boolean fast, long delay) {
+            super(delay, TimeUnit.MILLISECONDS);
+            this.key = key;
+            this.fast = fast;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return (obj instanceof LaneElement) && ((LaneElement) obj).key.equals(key);
+        }
+    }
+
+}